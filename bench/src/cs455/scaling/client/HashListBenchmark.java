@@ -0,0 +1,79 @@
+package cs455.scaling.client;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HashList add and remove with several threads sharing one table, the way a LoadWorker's
+ * clients share it. Every thread keeps WINDOW of its own requests pending, and each operation
+ * sends one more and answers the oldest. Run with -t to change the number of threads.
+ * @author Brandt Reutimann
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class HashListBenchmark {
+	private static final int WINDOW = 64;
+	private static final int DIGESTS = 1024;
+
+	@Param({ "false", "true" })
+	public boolean keyedById;
+
+	private HashList pending;
+	private final AtomicInteger threadCount = new AtomicInteger(0);
+
+	@State(Scope.Thread)
+	public static class Sender {
+		final ByteBuffer [] digests = new ByteBuffer [DIGESTS];
+		// Request ids of different threads never meet
+		long firstId;
+		long next = 0;
+
+		@Setup
+		public void setup(HashListBenchmark benchmark) {
+			int thread = benchmark.threadCount.getAndIncrement();
+			firstId = (long) thread << 40;
+			Random random = new Random(thread);
+			for (int i = 0; i < DIGESTS; i++) {
+				byte [] digest = new byte [HashList.KEY_LENGTH];
+				random.nextBytes(digest);
+				digests[i] = ByteBuffer.wrap(digest);
+			}
+			for (; next < WINDOW; next++) {
+				benchmark.pending.add(digests[(int) next], firstId + next, next);
+			}
+		}
+	}
+
+	@Setup
+	public void setup() {
+		pending = new HashList(keyedById);
+	}
+
+	@Benchmark
+	public long sendAndAnswer(Sender sender) {
+		long sent = sender.next++;
+		pending.add(sender.digests[(int) (sent % DIGESTS)], sender.firstId + sent, sent);
+		long answered = sent - WINDOW;
+		return pending.remove(sender.digests[(int) (answered % DIGESTS)], sender.firstId + answered);
+	}
+}
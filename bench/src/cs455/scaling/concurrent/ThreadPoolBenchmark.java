@@ -0,0 +1,120 @@
+package cs455.scaling.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cs455.scaling.tasks.Task;
+
+/**
+ * Offer to execution through the ThreadPool, for one and for four producer threads.
+ * The burst benchmarks offer BURST tasks and wait for all of them, which measures throughput.
+ * The round trip benchmarks offer one task and wait for it, which measures the latency of
+ * waking a parked worker and hearing back from it.
+ * @author Brandt Reutimann
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ThreadPoolBenchmark {
+	private static final int BURST = 256;
+
+	@Param({ "1", "4", "8" })
+	public int workers;
+
+	private ThreadPool pool;
+
+	/**
+	 * Does nothing, so only the pool's own cost is measured. Reset between uses.
+	 */
+	static class EmptyTask extends Task {
+		@Override
+		public void run() {
+		}
+
+		void reuse() {
+			reset();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Producer {
+		final EmptyTask [] tasks = new EmptyTask [BURST];
+
+		@Setup
+		public void setup() {
+			for (int i = 0; i < BURST; i++) {
+				tasks[i] = new EmptyTask();
+			}
+		}
+
+		void offerAndWait(ThreadPool pool, int count) {
+			for (int i = 0; i < count; i++) {
+				tasks[i].reuse();
+				pool.offerTask(tasks[i]);
+			}
+			for (int i = 0; i < count; i++) {
+				tasks[i].waitOnTaskFinished();
+			}
+		}
+	}
+
+	@Setup
+	public void setup() {
+		pool = new ThreadPool(workers);
+		pool.initialize();
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.closePoolNow();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(BURST)
+	@Threads(1)
+	public void burst(Producer producer) {
+		producer.offerAndWait(pool, BURST);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(BURST)
+	@Threads(4)
+	public void burstFourProducers(Producer producer) {
+		producer.offerAndWait(pool, BURST);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(1)
+	public void roundTrip(Producer producer) {
+		producer.offerAndWait(pool, 1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(4)
+	public void roundTripFourProducers(Producer producer) {
+		producer.offerAndWait(pool, 1);
+	}
+}
@@ -0,0 +1,59 @@
+package cs455.scaling.hash;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cs455.scaling.util.MessageHasher;
+
+/**
+ * Every registered hash function over a payload in a direct buffer, as the server hashes it.
+ * @author Brandt Reutimann
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HashFunctionBenchmark {
+	@Param({ "sha1", "sha256", "crc32c", "xxhash64" })
+	public String hash;
+
+	@Param({ "64", "8000" })
+	public int payloadSize;
+
+	private HashFunction function;
+	private ByteBuffer payload;
+	private final ByteBuffer out = ByteBuffer.allocateDirect(HashFunctions.MAX_DIGEST_LENGTH);
+
+	@Setup
+	public void setup() {
+		function = HashFunctions.forName(hash);
+		byte [] bytes = new byte [payloadSize];
+		new Random(42).nextBytes(bytes);
+		payload = ByteBuffer.allocateDirect(payloadSize);
+		payload.put(bytes);
+		payload.flip();
+	}
+
+	@Benchmark
+	public ByteBuffer hashPayload() {
+		payload.rewind();
+		out.clear();
+		MessageHasher.hash(function, payload, out);
+		return out;
+	}
+}
@@ -0,0 +1,152 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A connected socket with no network behind it, for benchmarking the server's read and write
+ * paths without the kernel. Reads replay the same request bytes forever, and writes take
+ * everything they are offered and throw it away.
+ * @author Brandt Reutimann
+ */
+class InMemorySocketChannel extends SocketChannel {
+	private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 5600);
+	private final ByteBuffer request;
+	private long bytesWritten = 0;
+
+	/**
+	 * @param request - one encoded request, replayed from its position to its limit
+	 */
+	InMemorySocketChannel(ByteBuffer request) {
+		super(SelectorProvider.provider());
+		this.request = request.slice();
+	}
+
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int read = 0;
+		while (dst.hasRemaining()) {
+			if (!request.hasRemaining()) {
+				request.rewind();
+			}
+			int count = Math.min(dst.remaining(), request.remaining());
+			ByteBuffer chunk = request.duplicate();
+			chunk.limit(chunk.position() + count);
+			dst.put(chunk);
+			request.position(request.position() + count);
+			read += count;
+		}
+		return read;
+	}
+
+	@Override
+	public long read(ByteBuffer [] dsts, int offset, int length) throws IOException {
+		long read = 0;
+		for (int i = offset; i < offset + length; i++) {
+			read += read(dsts[i]);
+		}
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = src.remaining();
+		src.position(src.limit());
+		bytesWritten += written;
+		return written;
+	}
+
+	@Override
+	public long write(ByteBuffer [] srcs, int offset, int length) throws IOException {
+		long written = 0;
+		for (int i = offset; i < offset + length; i++) {
+			written += write(srcs[i]);
+		}
+		return written;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return ADDRESS;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() {
+		return ADDRESS;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public boolean isConnectionPending() {
+		return false;
+	}
+
+	@Override
+	public boolean connect(SocketAddress remote) {
+		return true;
+	}
+
+	@Override
+	public boolean finishConnect() {
+		return true;
+	}
+
+	@Override
+	public SocketChannel bind(SocketAddress local) {
+		return this;
+	}
+
+	@Override
+	public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+		return this;
+	}
+
+	@Override
+	public <T> T getOption(SocketOption<T> name) {
+		return null;
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public SocketChannel shutdownInput() {
+		return this;
+	}
+
+	@Override
+	public SocketChannel shutdownOutput() {
+		return this;
+	}
+
+	@Override
+	public Socket socket() {
+		throw new UnsupportedOperationException("An in memory channel has no socket");
+	}
+
+	@Override
+	protected void implCloseSelectableChannel() {
+	}
+
+	@Override
+	protected void implConfigureBlocking(boolean block) {
+	}
+}
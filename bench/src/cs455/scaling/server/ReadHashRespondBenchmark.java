@@ -0,0 +1,96 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cs455.scaling.concurrent.ThreadPool;
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+import cs455.scaling.protocol.Message;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.tasks.ReadMessageAndRespond;
+import cs455.scaling.util.BufferPool;
+import cs455.scaling.util.ResponseCache;
+
+/**
+ * One request through the server's per message path: the connection's decoder reads it from
+ * the socket, ReadMessageAndRespond hashes it, and the response is framed and written back.
+ * The socket is an InMemorySocketChannel, so no time goes to the kernel. The legacy protocol
+ * always sends 8 KB and ignores payloadSize. With a cache every request after the first is a hit.
+ * @author Brandt Reutimann
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReadHashRespondBenchmark {
+	@Param({ "legacy", "framed" })
+	public String protocol;
+
+	@Param({ "8000" })
+	public int payloadSize;
+
+	@Param({ "sha1" })
+	public String hash;
+
+	@Param({ "0", "1024" })
+	public int cacheEntries;
+
+	private ClientConnection client;
+	private InMemorySocketChannel socket;
+
+	@Setup
+	public void setup() {
+		WireFormat format = WireFormat.fromName(protocol);
+		HashFunction function = HashFunctions.forName(hash);
+		int size = format == WireFormat.LEGACY ? WireFormat.LEGACY_MESSAGE_SIZE : payloadSize;
+		ByteBuffer request = ByteBuffer.allocate(format.headerSize() + size);
+		format.writeHeader(request, WireFormat.TYPE_REQUEST, 1, size);
+		byte [] payload = new byte [size];
+		new Random(42).nextBytes(payload);
+		request.put(payload);
+		request.flip();
+		socket = new InMemorySocketChannel(request);
+		BufferPool buffers = new BufferPool(WireFormat.LEGACY_MESSAGE_SIZE, 64);
+		BufferPool responses = new BufferPool(WireFormat.HEADER_SIZE + HashFunctions.MAX_DIGEST_LENGTH, 64);
+		ResponseCache cache = cacheEntries > 0 ? new ResponseCache(cacheEntries, WireFormat.LEGACY_MESSAGE_SIZE) : null;
+		// The pool is never started, the metrics only read its histograms
+		ServerMetrics metrics = new ServerMetrics(new ThreadPool(1), cache);
+		client = new ClientConnection(socket, format,
+				format.newDecoder(buffers, WireFormat.DEFAULT_MAX_PAYLOAD, WireFormat.LEGACY_MESSAGE_SIZE, function),
+				responses, function, cache, 128, metrics);
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	@Benchmark
+	public long readHashRespond() throws IOException {
+		Message message;
+		while ((message = client.readMessage()) == null) {
+			// Only a streamed payload needs more than one read
+		}
+		client.messageDispatched();
+		ReadMessageAndRespond.hashAndRespond(client, message);
+		return socket.getBytesWritten();
+	}
+}
@@ -0,0 +1,81 @@
+package cs455.scaling.util;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cs455.scaling.hash.HashFunctions;
+
+/**
+ * The SHA-1 response path for one 8 KB message, as the server first did it and as it does now.
+ * Both copy the message out of a stand in for the socket first. Run with the GC profiler
+ * (make bench does) to see the bytes allocated per message next to the time.
+ * @author Brandt Reutimann
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageHasherBenchmark {
+	private static final int MESSAGE_SIZE = 8000;
+
+	// What the socket would hand over
+	private ByteBuffer wire;
+	// New path, a pooled direct read buffer and a reused response buffer
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+	private final ByteBuffer response = ByteBuffer.allocateDirect(MessageHasher.SHA1_LENGTH);
+
+	@Setup
+	public void setup() {
+		byte [] message = new byte [MESSAGE_SIZE];
+		new Random(42).nextBytes(message);
+		wire = ByteBuffer.wrap(message);
+	}
+
+	/**
+	 * The original path: a new buffer per message, a provider lookup for a new digest, a digest
+	 * of the backing array, the hash as a hex string, and the response wrapped in a new buffer.
+	 */
+	@Benchmark
+	public ByteBuffer baselinePerMessageDigest(Blackhole hole) throws NoSuchAlgorithmException {
+		wire.rewind();
+		ByteBuffer buffer = ByteBuffer.allocate(MESSAGE_SIZE);
+		buffer.put(wire);
+		MessageDigest digest = MessageDigest.getInstance("SHA1");
+		byte [] hash = digest.digest(buffer.array());
+		hole.consume(new BigInteger(1, hash).toString(16));
+		return ByteBuffer.wrap(hash);
+	}
+
+	/**
+	 * The current path: the message is read into a reused direct buffer and hashed with the
+	 * thread's cached digest straight into the reused response buffer.
+	 */
+	@Benchmark
+	public ByteBuffer messageHasher() {
+		wire.rewind();
+		readBuffer.clear();
+		readBuffer.put(wire);
+		readBuffer.flip();
+		response.clear();
+		MessageHasher.hash(HashFunctions.SHA1, readBuffer, response);
+		return response;
+	}
+}
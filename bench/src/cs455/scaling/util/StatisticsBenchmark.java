@@ -0,0 +1,69 @@
+package cs455.scaling.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One stats interval of the diagnostics thread: every client's throughput counter is read and
+ * reset into the collector, then the summary it prints is computed.
+ * @author Brandt Reutimann
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StatisticsBenchmark {
+	@Param({ "10000" })
+	public int clients;
+
+	private LongAdder [] throughputs;
+	private long [] interval;
+	private final StatisticsCollectorAndDisplay stats = new StatisticsCollectorAndDisplay();
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		throughputs = new LongAdder [clients];
+		interval = new long [clients];
+		for (int i = 0; i < clients; i++) {
+			throughputs[i] = new LongAdder();
+			interval[i] = 400 + random.nextInt(200);
+		}
+	}
+
+	@Benchmark
+	public void collectInterval(Blackhole blackhole) {
+		// What the clients' responses would have added over the interval
+		for (int i = 0; i < clients; i++) {
+			throughputs[i].add(interval[i]);
+		}
+		stats.reset();
+		for (LongAdder throughput : throughputs) {
+			stats.accept(throughput.sumThenReset());
+		}
+		blackhole.consume(stats.getSum());
+		blackhole.consume(stats.getMean());
+		blackhole.consume(stats.getStdDev());
+		blackhole.consume(stats.getMin());
+		blackhole.consume(stats.getPercentile(50));
+		blackhole.consume(stats.getPercentile(90));
+		blackhole.consume(stats.getPercentile(99));
+		blackhole.consume(stats.getMax());
+	}
+}
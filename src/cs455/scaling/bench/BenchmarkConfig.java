@@ -0,0 +1,265 @@
+package cs455.scaling.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cs455.scaling.protocol.WireFormat;
+
+/**
+ * Command line configuration for the BenchmarkRunner. Every option is a --name=value flag,
+ * lists are comma separated. Options starting with --server. or --client. are handed to every
+ * server or load generator the runner starts, without the prefix.
+ * @author Brandt Reutimann
+ */
+public class BenchmarkConfig {
+	private int port = 5600;
+	private int [] poolSizes = { 8 };
+	private int [] reactorCounts = { 0 };
+	private int [] clientCounts = { 10, 100 };
+	private int [] payloadSizes = { WireFormat.LEGACY_MESSAGE_SIZE };
+	private WireFormat wireFormat = WireFormat.LEGACY;
+	// Per client send rates to run, null sweeps geometrically from startRate instead
+	private int [] rates = null;
+	private int startRate = 10;
+	private double rateFactor = 2;
+	private int maxRate = 100000;
+	// Bisections between the last good rate and the first saturated one
+	private int refineSteps = 2;
+	private int warmupSeconds = 5;
+	private int durationSeconds = 20;
+	// A run is saturated once it answers less than this share of the offered load
+	private double kneeEfficiency = 0.95;
+	// or once its p99 round trip passes this, 0 ignores latency
+	private int kneeP99Millis = 100;
+	// Results go to <out>.csv and <out>.json
+	private String out = "benchmark";
+	private final List<String> serverOptions = new ArrayList<String>();
+	private final List<String> clientOptions = new ArrayList<String>();
+
+	public static final String OPTIONS_USAGE =
+			"  --port=<n>              port every server listens on (default 5600)\n"
+		+	"  --pool-sizes=<list>     server thread pool sizes (default 8)\n"
+		+	"  --reactors=<list>       server reactor counts (default 0)\n"
+		+	"  --clients=<list>        numbers of clients (default 10,100)\n"
+		+	"  --payload-sizes=<list>  request payload sizes, framed only (default 8000)\n"
+		+	"  --protocol=<p>          legacy or framed, for the server and the clients (default legacy)\n"
+		+	"  --rates=<list>          messages per second per client to run, in place of the sweep\n"
+		+	"  --start-rate=<n>        first rate of the sweep (default 10)\n"
+		+	"  --rate-factor=<x>       each step of the sweep multiplies the rate by x (default 2)\n"
+		+	"  --max-rate=<n>          the sweep stops here if the server keeps up (default 100000)\n"
+		+	"  --refine-steps=<n>      bisections between the last good and first saturated rate (default 2)\n"
+		+	"  --warmup-s=<n>          seconds of load before measuring (default 5)\n"
+		+	"  --duration-s=<n>        seconds measured per run (default 20)\n"
+		+	"  --knee-efficiency=<x>   saturated below this share of the offered load answered (default 0.95)\n"
+		+	"  --knee-p99-ms=<n>       saturated above this p99 round trip, 0 ignores latency (default 100)\n"
+		+	"  --out=<path>            results are written to path.csv and path.json (default benchmark)\n"
+		+	"  --server.<name>=<v>     passed to every server as --name=v\n"
+		+	"  --client.<name>=<v>     passed to every load generator as --name=v\n";
+
+	/**
+	 * @throws IllegalArgumentException if the arguments are malformed
+	 */
+	public static BenchmarkConfig parse (String [] args) {
+		BenchmarkConfig config = new BenchmarkConfig();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split == -1) {
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			}
+			config.setOption(arg.substring(2, split), arg.substring(split + 1));
+		}
+		if (config.wireFormat == WireFormat.LEGACY) {
+			for (int size : config.payloadSizes) {
+				if (size != WireFormat.LEGACY_MESSAGE_SIZE) {
+					throw new IllegalArgumentException("payload-sizes requires --protocol=framed");
+				}
+			}
+		}
+		if (config.startRate < 1 || config.maxRate < config.startRate) {
+			throw new IllegalArgumentException("start-rate must be at least 1 and at most max-rate");
+		}
+		if (config.rateFactor <= 1) {
+			throw new IllegalArgumentException("rate-factor must be more than 1");
+		}
+		if (config.refineSteps < 0 || config.warmupSeconds < 0) {
+			throw new IllegalArgumentException("refine-steps and warmup-s must not be negative");
+		}
+		if (config.durationSeconds < 1) {
+			throw new IllegalArgumentException("duration-s must be at least 1");
+		}
+		if (config.kneeEfficiency <= 0 || config.kneeEfficiency > 1 || config.kneeP99Millis < 0) {
+			throw new IllegalArgumentException("knee-efficiency must be in (0, 1], knee-p99-ms must not be negative");
+		}
+		return config;
+	}
+
+	private void setOption (String name, String value) {
+		if (name.startsWith("server.")) {
+			serverOptions.add("--" + name.substring("server.".length()) + "=" + value);
+			return;
+		}
+		if (name.startsWith("client.")) {
+			clientOptions.add("--" + name.substring("client.".length()) + "=" + value);
+			return;
+		}
+		switch (name) {
+		case "port":
+			port = parseInt(name, value);
+			break;
+		case "pool-sizes":
+			poolSizes = parseList(name, value, 1);
+			break;
+		case "reactors":
+			reactorCounts = parseList(name, value, 0);
+			break;
+		case "clients":
+			clientCounts = parseList(name, value, 1);
+			break;
+		case "payload-sizes":
+			payloadSizes = parseList(name, value, 0);
+			break;
+		case "protocol":
+			try {
+				wireFormat = WireFormat.fromName(value);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("protocol must be legacy or framed");
+			}
+			break;
+		case "rates":
+			rates = parseList(name, value, 1);
+			break;
+		case "start-rate":
+			startRate = parseInt(name, value);
+			break;
+		case "rate-factor":
+			rateFactor = parseDouble(name, value);
+			break;
+		case "max-rate":
+			maxRate = parseInt(name, value);
+			break;
+		case "refine-steps":
+			refineSteps = parseInt(name, value);
+			break;
+		case "warmup-s":
+			warmupSeconds = parseInt(name, value);
+			break;
+		case "duration-s":
+			durationSeconds = parseInt(name, value);
+			break;
+		case "knee-efficiency":
+			kneeEfficiency = parseDouble(name, value);
+			break;
+		case "knee-p99-ms":
+			kneeP99Millis = parseInt(name, value);
+			break;
+		case "out":
+			out = value;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: --" + name);
+		}
+	}
+
+	private static int parseInt (String name, String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number, got: " + value);
+		}
+	}
+
+	private static double parseDouble (String name, String value) {
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number, got: " + value);
+		}
+	}
+
+	private static int [] parseList (String name, String value, int min) {
+		String [] items = value.split(",");
+		int [] list = new int [items.length];
+		for (int i = 0; i < items.length; i++) {
+			list[i] = parseInt(name, items[i].trim());
+			if (list[i] < min) {
+				throw new IllegalArgumentException(name + " must be at least " + min + ", got: " + list[i]);
+			}
+		}
+		return list;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int [] getPoolSizes() {
+		return poolSizes;
+	}
+
+	public int [] getReactorCounts() {
+		return reactorCounts;
+	}
+
+	public int [] getClientCounts() {
+		return clientCounts;
+	}
+
+	public int [] getPayloadSizes() {
+		return payloadSizes;
+	}
+
+	public WireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	/**
+	 * @return the rates to run in order, or null to sweep
+	 */
+	public int [] getRates() {
+		return rates;
+	}
+
+	public int getStartRate() {
+		return startRate;
+	}
+
+	public double getRateFactor() {
+		return rateFactor;
+	}
+
+	public int getMaxRate() {
+		return maxRate;
+	}
+
+	public int getRefineSteps() {
+		return refineSteps;
+	}
+
+	public int getWarmupSeconds() {
+		return warmupSeconds;
+	}
+
+	public int getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	public double getKneeEfficiency() {
+		return kneeEfficiency;
+	}
+
+	public int getKneeP99Millis() {
+		return kneeP99Millis;
+	}
+
+	public String getOut() {
+		return out;
+	}
+
+	public List<String> getServerOptions() {
+		return serverOptions;
+	}
+
+	public List<String> getClientOptions() {
+		return clientOptions;
+	}
+}
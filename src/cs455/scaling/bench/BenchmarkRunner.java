@@ -0,0 +1,373 @@
+package cs455.scaling.bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import cs455.scaling.client.ClientConfig;
+import cs455.scaling.client.LoadGenerator;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.server.Server;
+import cs455.scaling.server.ServerConfig;
+
+/**
+ * Finds how much load the server takes before it saturates. For every combination of pool
+ * size, reactor count, client count and payload size it starts a Server in this JVM, drives it
+ * over loopback with a LoadGenerator, and raises the per client rate until the server falls
+ * behind: it answers less than --knee-efficiency of the offered load, its p99 round trip passes
+ * --knee-p99-ms, or it rejects requests or drops clients. The knee is the highest rate that
+ * kept up, narrowed by bisecting towards the first rate that did not.
+ *
+ * Every run is warmed up before it is measured. Throughput and round trips are measured at the
+ * clients, CPU and GC time over the whole process, which holds the server and the clients.
+ * The CSV and JSON results are rewritten after every run, so an interrupted matrix keeps what it had.
+ * @author Brandt Reutimann
+ */
+public class BenchmarkRunner {
+	private static final String LOOPBACK = "127.0.0.1";
+	// Keeps the servers' periodic statistics out of the runner's output
+	private static final int QUIET_STATS_INTERVAL_S = 24 * 3600;
+	private final BenchmarkConfig config;
+	private final List<Run> runs = new ArrayList<Run>();
+	private final List<Knee> knees = new ArrayList<Knee>();
+
+	/**
+	 * One measured run at a fixed rate
+	 */
+	private static class Run {
+		int poolSize;
+		int reactors;
+		int clients;
+		int payloadSize;
+		int rate;
+		double offered;
+		double throughput;
+		long sent;
+		long received;
+		long rejected;
+		long droppedClients;
+		double p50Millis;
+		double p90Millis;
+		double p99Millis;
+		double p999Millis;
+		double maxMillis;
+		double cpuSeconds;
+		double cpuUtilization;
+		long gcMillis;
+		long gcCount;
+		boolean saturated;
+	}
+
+	/**
+	 * The highest rate one combination kept up with, 0 if it kept up with none
+	 */
+	private static class Knee {
+		int poolSize;
+		int reactors;
+		int clients;
+		int payloadSize;
+		int rate;
+		double throughput;
+		// False when even the highest rate tried kept up, so the real knee lies beyond it
+		boolean found;
+	}
+
+	public BenchmarkRunner(BenchmarkConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * Runs the whole matrix
+	 */
+	public void runAll() throws IOException, InterruptedException {
+		for (int poolSize : config.getPoolSizes()) {
+			for (int reactors : config.getReactorCounts()) {
+				for (int clients : config.getClientCounts()) {
+					for (int payloadSize : config.getPayloadSizes()) {
+						findKnee(poolSize, reactors, clients, payloadSize);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Raises the rate until the server saturates, then bisects between the last good rate and the first saturated one
+	 */
+	private void findKnee(int poolSize, int reactors, int clients, int payloadSize)
+			throws IOException, InterruptedException {
+		Run good = null;
+		int bad = 0;
+		int [] rates = config.getRates();
+		if (rates != null) {
+			for (int rate : rates) {
+				Run run = measure(poolSize, reactors, clients, payloadSize, rate);
+				if (run.saturated) {
+					bad = rate;
+					break;
+				}
+				good = run;
+			}
+		} else {
+			int rate = config.getStartRate();
+			while (rate <= config.getMaxRate()) {
+				Run run = measure(poolSize, reactors, clients, payloadSize, rate);
+				if (run.saturated) {
+					bad = rate;
+					break;
+				}
+				good = run;
+				rate = (int) Math.min(Integer.MAX_VALUE, Math.max(rate + 1L, Math.round(rate * config.getRateFactor())));
+			}
+		}
+		for (int i = 0; i < config.getRefineSteps() && bad > 0; i++) {
+			int low = good == null ? 0 : good.rate;
+			int middle = low + (bad - low) / 2;
+			if (middle <= low) {
+				break;
+			}
+			Run run = measure(poolSize, reactors, clients, payloadSize, middle);
+			if (run.saturated) {
+				bad = middle;
+			} else {
+				good = run;
+			}
+		}
+		Knee knee = new Knee();
+		knee.poolSize = poolSize;
+		knee.reactors = reactors;
+		knee.clients = clients;
+		knee.payloadSize = payloadSize;
+		knee.rate = good == null ? 0 : good.rate;
+		knee.throughput = good == null ? 0 : good.throughput;
+		knee.found = bad > 0;
+		knees.add(knee);
+		System.out.printf(Locale.ROOT, "Knee for pool=%d reactors=%d clients=%d payload=%d: %s%d msg/s per client, %.1f msg/s in total\n",
+				poolSize, reactors, clients, payloadSize, knee.found ? "" : "beyond ", knee.rate, knee.throughput);
+		writeResults();
+	}
+
+	private String [] serverArgs(int poolSize, int reactors) {
+		List<String> args = new ArrayList<String>();
+		args.add(Integer.toString(config.getPort()));
+		args.add(Integer.toString(poolSize));
+		args.add(Integer.toString(reactors));
+		args.add("--protocol=" + protocolName());
+		args.add("--stats-interval-s=" + QUIET_STATS_INTERVAL_S);
+		args.addAll(config.getServerOptions());
+		return args.toArray(new String [0]);
+	}
+
+	private String [] clientArgs(int payloadSize, int rate) {
+		List<String> args = new ArrayList<String>();
+		args.add(LOOPBACK);
+		args.add(Integer.toString(config.getPort()));
+		args.add(Integer.toString(rate));
+		args.add("--protocol=" + protocolName());
+		if (config.getWireFormat() != WireFormat.LEGACY) {
+			args.add("--payload-size=" + payloadSize);
+		}
+		args.addAll(config.getClientOptions());
+		return args.toArray(new String [0]);
+	}
+
+	private String protocolName() {
+		return config.getWireFormat().name().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Parses the options every run will hand to the servers and clients, so a typo fails before the first run
+	 * @throws IllegalArgumentException if the servers or clients would reject their options
+	 */
+	public void checkOptions() {
+		ServerConfig.parse(serverArgs(config.getPoolSizes()[0], config.getReactorCounts()[0]));
+		ClientConfig.parse(clientArgs(config.getPayloadSizes()[0], config.getStartRate()), 0);
+	}
+
+	/**
+	 * Starts a server, loads it at rate messages per second per client, and measures it once warmed up
+	 */
+	private Run measure(int poolSize, int reactors, int clients, int payloadSize, int rate)
+			throws IOException, InterruptedException {
+		ServerConfig serverConfig = ServerConfig.parse(serverArgs(poolSize, reactors));
+		ClientConfig clientConfig = ClientConfig.parse(clientArgs(payloadSize, rate), 0);
+		Server server = new Server(serverConfig);
+		LoadGenerator.Interval interval;
+		long cpuNanos;
+		long [] gc;
+		try {
+			if (!server.startInBackground()) {
+				throw new IOException("The server could not listen on port " + config.getPort());
+			}
+			LoadGenerator generator = new LoadGenerator(clientConfig, clients);
+			generator.start();
+			try {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(config.getWarmupSeconds()));
+				generator.collectAndReset();
+				long cpuBefore = processCpuNanos();
+				long [] gcBefore = gcTotals();
+				Thread.sleep(TimeUnit.SECONDS.toMillis(config.getDurationSeconds()));
+				interval = generator.collectAndReset();
+				cpuNanos = processCpuNanos() - cpuBefore;
+				gc = gcTotals();
+				gc[0] -= gcBefore[0];
+				gc[1] -= gcBefore[1];
+			} finally {
+				generator.stop();
+			}
+		} finally {
+			server.shutdown();
+		}
+
+		Run run = new Run();
+		run.poolSize = poolSize;
+		run.reactors = reactors;
+		run.clients = clients;
+		run.payloadSize = payloadSize;
+		run.rate = rate;
+		run.offered = (double) clients * rate;
+		run.throughput = interval.received / interval.seconds;
+		run.sent = interval.sent;
+		run.received = interval.received;
+		run.rejected = interval.rejected;
+		run.droppedClients = interval.failed;
+		run.p50Millis = interval.latency.getValueAtPercentile(50) / 1e6;
+		run.p90Millis = interval.latency.getValueAtPercentile(90) / 1e6;
+		run.p99Millis = interval.latency.getValueAtPercentile(99) / 1e6;
+		run.p999Millis = interval.latency.getValueAtPercentile(99.9) / 1e6;
+		run.maxMillis = interval.latency.getMax() / 1e6;
+		run.cpuSeconds = cpuNanos < 0 ? -1 : cpuNanos / 1e9;
+		run.cpuUtilization = cpuNanos < 0 ? -1
+				: run.cpuSeconds / (interval.seconds * Runtime.getRuntime().availableProcessors());
+		run.gcMillis = gc[0];
+		run.gcCount = gc[1];
+		run.saturated = run.throughput < config.getKneeEfficiency() * run.offered
+				|| (config.getKneeP99Millis() > 0 && run.p99Millis > config.getKneeP99Millis())
+				|| run.rejected > 0 || run.droppedClients > 0 || interval.connections < clients;
+		runs.add(run);
+		System.out.printf(Locale.ROOT, "pool=%d reactors=%d clients=%d payload=%d rate=%d/s: offered %.0f/s, answered %.1f/s,"
+				+ " p99 %.3f ms, cpu %.0f%%, gc %d ms -> %s\n", poolSize, reactors, clients, payloadSize, rate,
+				run.offered, run.throughput, run.p99Millis, run.cpuUtilization * 100, run.gcMillis,
+				run.saturated ? "saturated" : "ok");
+		writeResults();
+		return run;
+	}
+
+	/**
+	 * @return CPU time used by this process so far, or -1 if the JVM does not report it
+	 */
+	private static long processCpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return milliseconds spent in and number of collections across every collector so far
+	 */
+	private static long [] gcTotals() {
+		long [] totals = new long [2];
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			totals[0] += Math.max(0, collector.getCollectionTime());
+			totals[1] += Math.max(0, collector.getCollectionCount());
+		}
+		return totals;
+	}
+
+	private void writeResults() throws IOException {
+		try (Writer csv = new FileWriter(config.getOut() + ".csv")) {
+			csv.write("pool_size,reactors,clients,payload_size,rate_per_client,offered_per_s,throughput_per_s,"
+					+ "sent,received,rejected,dropped_clients,p50_ms,p90_ms,p99_ms,p999_ms,max_ms,"
+					+ "cpu_s,cpu_utilization,gc_ms,gc_count,saturated\n");
+			for (Run run : runs) {
+				csv.write(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%.1f,%.1f,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.4f,%d,%d,%b\n",
+						run.poolSize, run.reactors, run.clients, run.payloadSize, run.rate, run.offered, run.throughput,
+						run.sent, run.received, run.rejected, run.droppedClients, run.p50Millis, run.p90Millis,
+						run.p99Millis, run.p999Millis, run.maxMillis, run.cpuSeconds, run.cpuUtilization,
+						run.gcMillis, run.gcCount, run.saturated));
+			}
+		}
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"environment\": {");
+		json.append("\"java\": \"").append(System.getProperty("java.version")).append("\", ");
+		json.append("\"os\": \"").append(System.getProperty("os.name")).append(' ')
+			.append(System.getProperty("os.arch")).append("\", ");
+		json.append("\"cores\": ").append(Runtime.getRuntime().availableProcessors()).append(", ");
+		json.append("\"protocol\": \"").append(protocolName()).append("\", ");
+		json.append("\"warmup_s\": ").append(config.getWarmupSeconds()).append(", ");
+		json.append("\"duration_s\": ").append(config.getDurationSeconds()).append(", ");
+		json.append("\"knee_efficiency\": ").append(config.getKneeEfficiency()).append(", ");
+		json.append("\"knee_p99_ms\": ").append(config.getKneeP99Millis()).append(", ");
+		json.append("\"server_options\": \"").append(escape(String.join(" ", config.getServerOptions()))).append("\", ");
+		json.append("\"client_options\": \"").append(escape(String.join(" ", config.getClientOptions()))).append("\"},\n");
+		json.append("  \"runs\": [");
+		for (int i = 0; i < runs.size(); i++) {
+			Run run = runs.get(i);
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append(String.format(Locale.ROOT, "    {\"pool_size\": %d, \"reactors\": %d, \"clients\": %d, \"payload_size\": %d,"
+					+ " \"rate_per_client\": %d, \"offered_per_s\": %.1f, \"throughput_per_s\": %.1f, \"sent\": %d,"
+					+ " \"received\": %d, \"rejected\": %d, \"dropped_clients\": %d, \"p50_ms\": %.3f, \"p90_ms\": %.3f,"
+					+ " \"p99_ms\": %.3f, \"p999_ms\": %.3f, \"max_ms\": %.3f, \"cpu_s\": %.3f, \"cpu_utilization\": %.4f,"
+					+ " \"gc_ms\": %d, \"gc_count\": %d, \"saturated\": %b}",
+					run.poolSize, run.reactors, run.clients, run.payloadSize, run.rate, run.offered, run.throughput,
+					run.sent, run.received, run.rejected, run.droppedClients, run.p50Millis, run.p90Millis,
+					run.p99Millis, run.p999Millis, run.maxMillis, run.cpuSeconds, run.cpuUtilization,
+					run.gcMillis, run.gcCount, run.saturated));
+		}
+		json.append("\n  ],\n  \"knees\": [");
+		for (int i = 0; i < knees.size(); i++) {
+			Knee knee = knees.get(i);
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append(String.format(Locale.ROOT, "    {\"pool_size\": %d, \"reactors\": %d, \"clients\": %d, \"payload_size\": %d,"
+					+ " \"rate_per_client\": %d, \"throughput_per_s\": %.1f, \"found\": %b}",
+					knee.poolSize, knee.reactors, knee.clients, knee.payloadSize, knee.rate, knee.throughput, knee.found));
+		}
+		json.append("\n  ]\n}\n");
+		try (Writer out = new FileWriter(config.getOut() + ".json")) {
+			out.write(json.toString());
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static void usage() {
+		System.err.println("java cs455.scaling.bench.BenchmarkRunner [options]");
+		System.err.print(BenchmarkConfig.OPTIONS_USAGE);
+		System.exit(1);
+	}
+
+	public static void main(String [] args) {
+		BenchmarkRunner runner = null;
+		try {
+			runner = new BenchmarkRunner(BenchmarkConfig.parse(args));
+			runner.checkOptions();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			usage();
+		}
+		try {
+			runner.runAll();
+		} catch (IOException e) {
+			System.err.println("Benchmark failed: " + e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			System.err.println("Benchmark interrupted");
+			System.exit(1);
+		} catch (UnsupportedOperationException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		System.out.println("Results written to " + runner.config.getOut() + ".csv and .json");
+	}
+}
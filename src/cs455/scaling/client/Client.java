@@ -9,34 +9,71 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+import cs455.scaling.protocol.ProtocolException;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.util.BufferPool;
+import cs455.scaling.util.LatencyHistogram;
+import cs455.scaling.util.MessageHasher;
+import cs455.scaling.util.SocketTuning;
 
 public class Client {
-	private final int KB = 1000;
 	private final Random random = new Random();
-	private final HashList hashlist = new HashList();
+	// Every request still waiting for its response, keyed on the expected hash
+	private final HashList hashlist;
 	private AtomicInteger sentCount = new AtomicInteger(0);
 	private AtomicInteger receivedCount = new AtomicInteger(0);
+	// Requests the server turned away with an ERROR frame
+	private AtomicInteger rejectedCount = new AtomicInteger(0);
+	// Round trip of the responses received since the last stats display, from when each request was due
+	private final LatencyHistogram latency = new LatencyHistogram();
 	
 	private final String host;
 	private final int port;
 	private final int sendRate;
 	private final boolean verbose;
+	private final WireFormat format;
+	private final int payloadSize;
+	private final SocketTuning socketTuning;
+	// Settled by the HELLO exchange before any message is sent
+	private HashFunction hashFunction;
+	// Only the sender thread draws from it, so it settles on a single reused buffer
+	private final BufferPool messageBuffers;
 	
 	private int posion = 0;
 	
 	public Client (String ip, int port, int sendRate, boolean verbose) {
+		this(ip, port, sendRate, verbose, WireFormat.LEGACY, WireFormat.LEGACY_MESSAGE_SIZE, HashFunctions.SHA1,
+				new SocketTuning());
+	}
+	
+	public Client (ClientConfig config, boolean verbose) {
+		this(config.getHost(), config.getPort(), config.getSendRate(), verbose,
+				config.getWireFormat(), config.getPayloadSize(), config.getHashFunction(), config.getSocketTuning());
+	}
+	
+	public Client (String ip, int port, int sendRate, boolean verbose, WireFormat format, int payloadSize,
+			HashFunction hashFunction, SocketTuning socketTuning) {
 		this.host = ip;
+		this.socketTuning = socketTuning;
 		this.port = port;
 		this.sendRate = sendRate;
 		this.verbose = verbose;
+		this.format = format;
+		// Framed responses carry their request id, and an ERROR frame carries nothing else
+		this.hashlist = new HashList(format != WireFormat.LEGACY);
+		this.payloadSize = payloadSize;
+		this.hashFunction = hashFunction;
+		this.messageBuffers = new BufferPool(format.headerSize() + payloadSize, 4);
 	}
 	
 	/**
@@ -46,7 +83,9 @@ public class Client {
 		SocketChannel hostConnection = null;
 		try {
 			SocketAddress hostAddress = new InetSocketAddress(InetAddress.getByName(ip), port);
-			hostConnection = SocketChannel.open(hostAddress);
+			hostConnection = SocketChannel.open();
+			socketTuning.applyTo(hostConnection);
+			hostConnection.connect(hostAddress);
 			System.out.println("Successfully connected to server");
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -55,37 +94,89 @@ public class Client {
 	}
 	
 	/**
-	 * Generates a buffer of random bytes 8 kb in size
+	 * Asks a framed server for our hash function over the still blocking channel,
+	 * and switches to whichever function the server answers with.
+	 */
+	private void negotiateHash (SocketChannel server) throws IOException {
+		ByteBuffer hello = ByteBuffer.allocate(WireFormat.HEADER_SIZE + 1);
+		format.writeHeader(hello, WireFormat.TYPE_HELLO, 0, 1);
+		hello.put(hashFunction.getId());
+		hello.flip();
+		while (hello.hasRemaining()) {
+			server.write(hello);
+		}
+		hello.clear();
+		while (hello.hasRemaining()) {
+			if (server.read(hello) == -1) {
+				throw new IOException("Server closed the connection during the HELLO");
+			}
+		}
+		hello.flip();
+		WireFormat.readHeader(hello, 1);
+		if (hello.get(WireFormat.TYPE_OFFSET) != WireFormat.TYPE_HELLO) {
+			throw new ProtocolException("Expected a HELLO from the server");
+		}
+		HashFunction agreed = HashFunctions.forId(hello.get(WireFormat.HEADER_SIZE));
+		if (agreed == null) {
+			throw new ProtocolException("Server chose an unknown hash function");
+		}
+		if (agreed != hashFunction) {
+			System.out.println("Server does not support " + hashFunction + ", using " + agreed);
+		}
+		hashFunction = agreed;
+	}
+	
+	/**
+	 * Fills a pooled buffer with a message of random bytes, 8 kb in size for the legacy format.
+	 * The position is left at the start of the payload, release the buffer once it is sent.
 	 * @return
 	 */
-	private ByteBuffer getRandomBytes() {
-		byte [] randomBytes = new byte [KB * 8];
-		random.nextBytes(randomBytes);
-		return ByteBuffer.wrap(randomBytes);
+	private ByteBuffer getRandomBytes(long requestId) {
+		ByteBuffer randomBytes = messageBuffers.acquire();
+		format.writeHeader(randomBytes, WireFormat.TYPE_REQUEST, requestId, payloadSize);
+		int payloadStart = randomBytes.position();
+		while (randomBytes.remaining() >= Long.BYTES) {
+			randomBytes.putLong(random.nextLong());
+		}
+		while (randomBytes.hasRemaining()) {
+			randomBytes.put((byte) random.nextInt());
+		}
+		randomBytes.flip();
+		randomBytes.position(payloadStart);
+		return randomBytes;
 	}
 	
 	/**
 	 * Algorithm from assignment page:
 	 * https://www.cs.colostate.edu/~cs455/CS455-Spring18-HW2-PC.pdf
+	 * Hashes with the negotiated function into digest, and leaves the position of data unchanged.
 	 */
-	private String SHA1FromBytes(byte[] data) {
-		MessageDigest digest;
-		try {
-			digest = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {
-			return null;
-		}
-		 byte[] hash = digest.digest(data);
-		 BigInteger hashInt = new BigInteger(1, hash);
-		 String str = hashInt.toString(16);
-		 return str;
+	private void hashFromBytes(ByteBuffer data, ByteBuffer digest) {
+		data.mark();
+		digest.clear();
+		MessageHasher.hash(hashFunction, data, digest);
+		digest.flip();
+		data.reset();
+	}
+	
+	/**
+	 * Only used to report a bad response
+	 */
+	private static String hashToString(ByteBuffer hash) {
+		byte [] bytes = new byte [hash.remaining()];
+		hash.duplicate().get(bytes);
+		BigInteger hashInt = new BigInteger(1, bytes);
+		String str = hashInt.toString(16);
+		return str;
 	}
 	
 	public void displayStatsAndReset() {
 		Date now = new Date();
 		String dateStr = new SimpleDateFormat("yyyy.MM.dd 'at' HH:mm:ss").format(now);
-		System.out.printf("[%s] Total Sent Count: %d, Total Received Count: %d\n", dateStr,
-				sentCount.getAndSet(0), receivedCount.getAndSet(0));
+		System.out.printf("[%s] Total Sent Count: %d, Total Received Count: %d, Rejected: %d, Pending: %d\n",
+				dateStr, sentCount.getAndSet(0), receivedCount.getAndSet(0), rejectedCount.getAndSet(0),
+				hashlist.size());
+		System.out.println("Round trip: " + latency.snapshotAndReset());
 	}
 	
 	private void startDiagnosticThread() {
@@ -106,10 +197,45 @@ public class Client {
 		diagnosticThread.start();
 	}
 	
+	/**
+	 * Checks one complete response, flipped for reading, against the pending hashes
+	 */
+	private void verifyResponse(ByteBuffer response) throws ProtocolException {
+		long requestId = HashList.ANY_ID;
+		if (format != WireFormat.LEGACY) {
+			byte type = response.get(WireFormat.TYPE_OFFSET);
+			requestId = response.getLong(WireFormat.REQUEST_ID_OFFSET);
+			if (type == WireFormat.TYPE_ERROR) {
+				if (hashlist.removeById(requestId) != HashList.NOT_FOUND) {
+					rejectedCount.getAndIncrement();
+				}
+				return;
+			}
+			if (type != WireFormat.TYPE_RESPONSE) {
+				throw new ProtocolException("Expected a response from the server");
+			}
+			response.position(format.headerSize());
+		}
+		long sentAt = hashlist.remove(response, requestId);
+		if (sentAt == HashList.NOT_FOUND) {
+    		System.out.println("Received unrecognizd hash: " + hashToString(response));
+    		System.out.println("Pending Hashes: " + hashlist.size());
+    		if (posion++ == 5) {
+    			System.exit(2);
+    		}
+		} else {
+			latency.record(System.nanoTime() - sentAt);
+			receivedCount.getAndIncrement();
+		}
+	}
+	
 	public void run () throws IOException {
 		// Connect to the server
 		Selector selector = Selector.open();
 		SocketChannel server = connectToServer(host, port);
+		if (format == WireFormat.FRAMED) {
+			negotiateHash(server);
+		}
 		server.configureBlocking(false);
 		server.register(selector, SelectionKey.OP_READ);
 		SenderThread senderThread = new SenderThread(server, sendRate);
@@ -117,34 +243,40 @@ public class Client {
 			startDiagnosticThread();
 		}
 		senderThread.start();
-		// Receive messages from the server
+		// Receive messages from the server, a response may arrive over several reads.
+		// A framed response is read header first, the header says how long the rest is.
+		ByteBuffer buffer = ByteBuffer.allocate(format.headerSize() + HashFunctions.MAX_DIGEST_LENGTH);
+		int firstRead = format == WireFormat.LEGACY ? hashFunction.getDigestLength() : format.headerSize();
+		buffer.limit(firstRead);
 		while (true) {
 			selector.select();
 			Set<SelectionKey> selectedKeys = selector.selectedKeys();
             Iterator<SelectionKey> iter = selectedKeys.iterator();
-            ByteBuffer buffer = ByteBuffer.allocate(20);
             while (iter.hasNext()) {
                 SelectionKey key = iter.next();
                 if (key.isReadable()) {
-                	// SHA hash is 20 bytes in size ?
-                	int read = 0;
                 	SocketChannel serverChannel = ((SocketChannel) key.channel());
-                	while (buffer.hasRemaining() && read != -1) {
-                		serverChannel.read(buffer);
-                	}
-                	BigInteger hashInt = new BigInteger(1, buffer.array());
-                	String receivedHash = hashInt.toString(16);
-                	if (!hashlist.removeIfPresent(receivedHash)) {
-                		System.out.println("Received unrecognizd hash: " + receivedHash);
-                		System.out.println("Pending Hashes: ");
-                		hashlist.printList(receivedHash);
-                		if (posion++ == 5) {
-                			System.exit(2);
+                	int read;
+                	while ((read = serverChannel.read(buffer)) > 0) {
+                		if (buffer.hasRemaining()) {
+                			continue;
+                		}
+                		if (format != WireFormat.LEGACY && buffer.position() == format.headerSize()) {
+                			int length = WireFormat.readHeader(buffer, HashFunctions.MAX_DIGEST_LENGTH);
+                			buffer.limit(format.headerSize() + length);
+                			if (buffer.hasRemaining()) {
+                				continue;
+                			}
                 		}
-                	} else {
-                		receivedCount.getAndIncrement();
+                		buffer.flip();
+                		verifyResponse(buffer);
+                		buffer.clear();
+                		buffer.limit(firstRead);
+                	}
+                	if (read == -1) {
+                		System.err.println("Server closed the connection");
+                		System.exit(1);
                 	}
-                	buffer.clear();
                 }
                 iter.remove();
             }
@@ -154,6 +286,8 @@ public class Client {
 	private class SenderThread extends Thread {
 		private final SocketChannel server;
 		private final int sendRate;
+		private long nextRequestId = 0;
+		private final ByteBuffer digest = ByteBuffer.allocate(HashFunctions.MAX_DIGEST_LENGTH);
 		
 		public SenderThread (SocketChannel server, int sendRate) {
 			this.server = server;
@@ -162,21 +296,31 @@ public class Client {
 
 		@Override
 		public void run() {
+			// Sends are paced against a schedule, so rates above 1000/s work and slow writes do not lower the rate
+			long period = 1000000000L / sendRate;
+			long nextSendAt = System.nanoTime();
 			while (true) {
-				ByteBuffer randomBytes = getRandomBytes();
-				String hashCode = SHA1FromBytes(randomBytes.array());
-				hashlist.add(hashCode);
+				long requestId = nextRequestId++;
+				ByteBuffer randomBytes = getRandomBytes(requestId);
+				hashFromBytes(randomBytes, digest);
+				// Timed from when the request was due, so falling behind schedule counts as latency
+				hashlist.add(digest, requestId, nextSendAt);
+				randomBytes.rewind();	// Send the header too
 				try {
 					while (randomBytes.hasRemaining()) {
 						server.write(randomBytes);
 					}
 					sentCount.getAndIncrement();
-					Thread.sleep(1000 / sendRate);
+					nextSendAt += period;
+					long wait;
+					while ((wait = nextSendAt - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
 				} catch (IOException e) {
 					e.printStackTrace();
 					System.exit(1);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+				} finally {
+					messageBuffers.release(randomBytes);
 				}
 			}
 		}
@@ -184,20 +328,21 @@ public class Client {
 	}
 	
 	private static void usage() {
-		System.err.println("java cs455.scaling.client.Client server-host server-port message-rate");
+		System.err.println("java cs455.scaling.client.Client server-host server-port message-rate [options]");
+		System.err.print(ClientConfig.OPTIONS_USAGE);
 		System.exit(1);
 	}
 	
 	public static void main (String [] args) throws IOException {
-		if (args.length != 3) {
+		ClientConfig config = null;
+		try {
+			config = ClientConfig.parse(args, 0);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
 			usage();
 		}
-		// Parse input params
-		String hostIPString = args[0];
-		int hostPort = Integer.parseInt(args[1]);
-		int sendRate = Integer.parseInt(args[2]);
 		// Start the client
-		Client client = new Client(hostIPString, hostPort, sendRate, true);
+		Client client = new Client(config, true);
 		client.run();
 	}
 
@@ -0,0 +1,225 @@
+package cs455.scaling.client;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.util.SocketTuning;
+
+/**
+ * Command line configuration shared by Client and ClientRunner.
+ * The server host, port and message rate are positional, everything else is an optional
+ * --name=value flag that falls back to the defaults below.
+ * @author Brandt Reutimann
+ */
+public class ClientConfig {
+	public enum LoadMode { OPEN, CLOSED }
+	
+	private String host;
+	private int port;
+	private int sendRate;
+	private WireFormat wireFormat = WireFormat.LEGACY;
+	// Bytes of random payload per message, fixed at 8 KB for the legacy format
+	private int payloadSize = WireFormat.LEGACY_MESSAGE_SIZE;
+	// Requested from the server in the framed format, must match the server's for legacy
+	private HashFunction hashFunction = HashFunctions.SHA1;
+	// The rest only apply to the load generator behind ClientRunner
+	// Open sends at message-rate no matter how the server keeps up, closed keeps a fixed number of requests in flight
+	private LoadMode loadMode = LoadMode.OPEN;
+	// Requests in flight per connection in closed mode
+	private int concurrency = 1;
+	private int selectorThreads = 2;
+	// Connections are opened over this many seconds, 0 opens them all at once
+	private int rampUpSeconds = 0;
+	// Open the connections in this many equal steps across the ramp, 0 ramps linearly
+	private int rampSteps = 0;
+	// Payloads are drawn from this many distinct ones, so the server sees repeats. 0 makes every payload new.
+	private int distinctPayloads = 0;
+	// The first heavyClients clients offer heavyFactor times the load of the others, to measure fairness
+	private int heavyClients = 0;
+	private int heavyFactor = 1;
+	private final SocketTuning socketTuning = new SocketTuning();
+	
+	public static final String OPTIONS_USAGE = 
+			"  --protocol=<p>          legacy (fixed 8 KB messages) or framed (length prefixed, pipelined)\n"
+		+	"  --payload-size=<n>      bytes per framed message (default 8000)\n"
+		+	"  --hash=<name>           sha1, sha256, crc32c or xxhash64 (default sha1)\n"
+		+	SocketTuning.USAGE;
+	
+	public static final String LOAD_OPTIONS_USAGE = 
+			"  --mode=<m>              open (fixed message-rate per client) or closed (fixed requests in flight)\n"
+		+	"  --concurrency=<n>       requests in flight per client in closed mode (default 1)\n"
+		+	"  --selector-threads=<n>  threads the clients are spread over (default 2)\n"
+		+	"  --ramp-up-s=<n>         seconds over which the clients connect (default 0, all at once)\n"
+		+	"  --ramp-steps=<n>        connect in n equal steps across the ramp (default 0, linear)\n"
+		+	"  --distinct-payloads=<n> send only n different payloads, to exercise a response cache\n"
+		+	"                          (default 0, every payload random)\n"
+		+	"  --heavy-clients=<n>     the first n clients offer heavy-factor times the load (default 0)\n"
+		+	"  --heavy-factor=<n>      times the rate, or in closed mode the concurrency, of a heavy client\n"
+		+	"                          (default 1)\n";
+	
+	/**
+	 * @param first - index of the server host, earlier arguments belong to the caller
+	 * @throws IllegalArgumentException if the arguments are malformed
+	 */
+	public static ClientConfig parse (String [] args, int first) {
+		if (args.length < first + 3) {
+			throw new IllegalArgumentException("Missing <server-host>, <server-port> or <message-rate>");
+		}
+		ClientConfig config = new ClientConfig();
+		config.host = args[first];
+		config.port = parseInt("server-port", args[first + 1]);
+		config.sendRate = parseInt("message-rate", args[first + 2]);
+		for (int i = first + 3; i < args.length; i++) {
+			String arg = args[i];
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split == -1) {
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			}
+			config.setOption(arg.substring(2, split), arg.substring(split + 1));
+		}
+		if (config.sendRate < 1) {
+			throw new IllegalArgumentException("message-rate must be at least 1");
+		}
+		if (config.wireFormat == WireFormat.LEGACY && config.payloadSize != WireFormat.LEGACY_MESSAGE_SIZE) {
+			throw new IllegalArgumentException("payload-size requires --protocol=framed");
+		}
+		if (config.payloadSize < 0) {
+			throw new IllegalArgumentException("payload-size must not be negative");
+		}
+		if (config.concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1");
+		}
+		if (config.selectorThreads < 1) {
+			throw new IllegalArgumentException("selector-threads must be at least 1");
+		}
+		if (config.rampUpSeconds < 0 || config.rampSteps < 0) {
+			throw new IllegalArgumentException("ramp-up-s and ramp-steps must not be negative");
+		}
+		if (config.distinctPayloads < 0) {
+			throw new IllegalArgumentException("distinct-payloads must not be negative");
+		}
+		if (config.heavyClients < 0 || config.heavyFactor < 1) {
+			throw new IllegalArgumentException("heavy-clients must not be negative, heavy-factor must be at least 1");
+		}
+		return config;
+	}
+	
+	private void setOption (String name, String value) {
+		if (socketTuning.setOption(name, value)) {
+			return;
+		}
+		switch (name) {
+		case "protocol":
+			try {
+				wireFormat = WireFormat.fromName(value);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("protocol must be legacy or framed");
+			}
+			break;
+		case "hash":
+			hashFunction = HashFunctions.forName(value);
+			break;
+		case "payload-size":
+			payloadSize = parseInt(name, value);
+			break;
+		case "mode":
+			try {
+				loadMode = LoadMode.valueOf(value.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("mode must be open or closed");
+			}
+			break;
+		case "concurrency":
+			concurrency = parseInt(name, value);
+			break;
+		case "selector-threads":
+			selectorThreads = parseInt(name, value);
+			break;
+		case "ramp-up-s":
+			rampUpSeconds = parseInt(name, value);
+			break;
+		case "ramp-steps":
+			rampSteps = parseInt(name, value);
+			break;
+		case "distinct-payloads":
+			distinctPayloads = parseInt(name, value);
+			break;
+		case "heavy-clients":
+			heavyClients = parseInt(name, value);
+			break;
+		case "heavy-factor":
+			heavyFactor = parseInt(name, value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: --" + name);
+		}
+	}
+	
+	private static int parseInt (String name, String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number, got: " + value);
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getSendRate() {
+		return sendRate;
+	}
+
+	public WireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	public HashFunction getHashFunction() {
+		return hashFunction;
+	}
+
+	public LoadMode getLoadMode() {
+		return loadMode;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	public int getRampUpSeconds() {
+		return rampUpSeconds;
+	}
+
+	public int getRampSteps() {
+		return rampSteps;
+	}
+
+	public int getDistinctPayloads() {
+		return distinctPayloads;
+	}
+
+	public int getHeavyClients() {
+		return heavyClients;
+	}
+
+	public int getHeavyFactor() {
+		return heavyFactor;
+	}
+
+	public SocketTuning getSocketTuning() {
+		return socketTuning;
+	}
+}
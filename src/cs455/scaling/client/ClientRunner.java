@@ -1,48 +1,42 @@
 package cs455.scaling.client;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 public class ClientRunner {
 	
 	public static void main (String [] args) {
-		if (args.length != 4) {
-			System.err.println("java ClientRunner <num-clients> <server-ip> <server-port> <send-rate>");
+		ClientConfig config = null;
+		int numClients = 0;
+		try {
+			if (args.length < 1) {
+				throw new IllegalArgumentException("Missing <num-clients>");
+			}
+			config = ClientConfig.parse(args, 1);
+			numClients = Integer.parseInt(args[0]);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("java ClientRunner <num-clients> <server-ip> <server-port> <send-rate> [options]");
+			System.err.print(ClientConfig.OPTIONS_USAGE);
+			System.err.print(ClientConfig.LOAD_OPTIONS_USAGE);
 			System.exit(1);
 		}
-		// Parse Cmd line
-		int numClients = Integer.parseInt(args[0]);
-		String ip = args[1];
-		int port = Integer.parseInt(args[2]);
-		int sendRate = Integer.parseInt(args[3]);
-		List<Client> clients = new ArrayList<Client>();
-		for (int i = 0; i < numClients; i++) {
-			Client client = new Client(ip, port, sendRate, false);
-			clients.add(client);
-			new Thread (new Runnable() {
-				@Override
-				public void run() {
-					try {
-						client.run();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-			}).start();
+		// Every client shares a few selector threads instead of getting threads of its own
+		LoadGenerator generator = null;
+		try {
+			generator = new LoadGenerator(config, numClients);
+		} catch (IOException e) {
+			System.err.println("Unable to start the load generator: " + e.getMessage());
+			System.exit(1);
 		}
+		generator.start();
 		while (true) {
-			int i = 1;
-			for (Client c : clients) {
-				System.out.print("Client: " + i++ + " ");
-				c.displayStatsAndReset();
-			}
 			int seconds = 20;
 			try {
 				Thread.sleep(1000 * seconds);
 			} catch (InterruptedException e) {
 				System.exit(0);
 			}
+			generator.displayStatsAndReset();
 		}
 	}
 }
@@ -1,49 +1,279 @@
 package cs455.scaling.client;
 
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The requests a client has sent and not yet seen a response for, keyed on the raw digest.
+ * Digests are packed into two longs and an int, so neither insert nor remove allocates, and
+ * longer digests are keyed on their first 20 bytes. Each entry also remembers its request id
+ * and when it was sent, so the caller can time the round trip, and its owner, the client that
+ * sent it when one list is shared by several clients.
+ *
+ * The table is split into stripes that are each an open addressing table behind their own
+ * lock, so the sender and receiver threads rarely wait on each other.
+ *
+ * When every response carries its request id the entries can be placed by id instead, which
+ * also lets an ERROR frame, that carries no digest, find the request it answers.
+ * @author Brandt Reutimann
+ */
 public class HashList {
-	private final List<String> hashlist = new LinkedList<String>();
-	
-	public void add (String s) {
-		synchronized (hashlist) {
-			hashlist.add(s);
-		}
-	}
-	
-	/**
-	 * @param s the hashcode to remove
-	 * @return false if string not present
-	 */
-	public boolean removeIfPresent(String s) {
-		synchronized (hashlist) {
-			int index = hashlist.indexOf(s);
-			if (index == -1) {
-				return false;
-			} else {
-				hashlist.remove(index);
-				return true;
-			}
+	// Returned by remove when no entry matches
+	public static final long NOT_FOUND = Long.MIN_VALUE;
+	// Matches an entry with any request id, for the legacy format whose responses carry none
+	public static final long ANY_ID = -1;
+	public static final int KEY_LENGTH = 20;
+	private static final int STRIPES = 16;
+	private static final int INITIAL_STRIPE_CAPACITY = 64;
+
+	private final Stripe [] stripes = new Stripe [STRIPES];
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final boolean keyedById;
+
+	public HashList () {
+		this(false);
+	}
+
+	/**
+	 * @param keyedById - place entries by request id, every remove must then give the id
+	 */
+	public HashList (boolean keyedById) {
+		this.keyedById = keyedById;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(INITIAL_STRIPE_CAPACITY, keyedById);
+		}
+	}
+
+	/**
+	 * Records a sent request, for a list with a single owner
+	 */
+	public void add (ByteBuffer digest, long requestId, long sentAt) {
+		add(digest, requestId, 0, sentAt);
+	}
+
+	/**
+	 * Records a sent request. The digest is read from its position to its limit, which is left unchanged.
+	 * @param owner - the client that sent the request
+	 * @param sentAt - send time in nanoseconds, handed back by remove
+	 */
+	public void add (ByteBuffer digest, long requestId, int owner, long sentAt) {
+		long k0 = pack(digest, 0);
+		long k1 = pack(digest, 8);
+		int k2 = (int) (pack(digest, 16) >>> 32);
+		long hash = slotHash(keyedById, k0, k1, k2, requestId);
+		stripes[(int) (hash >>> 60)].put(k0, k1, k2, (int) hash, requestId, owner, sentAt);
+		size.incrementAndGet();
+	}
+
+	/**
+	 * Removes the entry for a response, for a list with a single owner
+	 */
+	public long remove (ByteBuffer digest, long requestId) {
+		return remove(digest, requestId, 0);
+	}
+
+	/**
+	 * Removes the entry for a response. The digest is read from its position to its limit, which is left unchanged.
+	 * @param requestId - the id the response carries, or ANY_ID if the list is not keyed by id
+	 * @param owner - the client the response came to, only its own requests match
+	 * @return the time the request was sent, or NOT_FOUND if there is no such request
+	 */
+	public long remove (ByteBuffer digest, long requestId, int owner) {
+		long k0 = pack(digest, 0);
+		long k1 = pack(digest, 8);
+		int k2 = (int) (pack(digest, 16) >>> 32);
+		long hash = slotHash(keyedById, k0, k1, k2, requestId);
+		long sentAt = stripes[(int) (hash >>> 60)].remove(k0, k1, k2, (int) hash, requestId, owner, true);
+		if (sentAt != NOT_FOUND) {
+			size.decrementAndGet();
+		}
+		return sentAt;
+	}
+
+	/**
+	 * Drops every request of an owner, for a client that closed before its responses came back.
+	 * Walks the whole table, so it is meant for the rare close rather than every response.
+	 * @return how many requests were dropped
+	 */
+	public int removeOwner (int owner) {
+		int removed = 0;
+		for (Stripe stripe : stripes) {
+			removed += stripe.removeOwner(owner);
+		}
+		size.addAndGet(-removed);
+		return removed;
+	}
+
+	/**
+	 * Removes a request whatever its digest, for a request the server refused.
+	 * Only for a list keyed by id.
+	 * @return the time the request was sent, or NOT_FOUND if there is no such request
+	 */
+	public long removeById (long requestId) {
+		if (!keyedById) {
+			throw new IllegalStateException("HashList is not keyed by request id");
 		}
+		long hash = slotHash(true, 0, 0, 0, requestId);
+		long sentAt = stripes[(int) (hash >>> 60)].remove(0, 0, 0, (int) hash, requestId, 0, false);
+		if (sentAt != NOT_FOUND) {
+			size.decrementAndGet();
+		}
+		return sentAt;
+	}
+
+	/**
+	 * @return requests still waiting for their response
+	 */
+	public int size () {
+		return size.get();
 	}
-	
-	public boolean contains(String s) {
-		synchronized (hashlist) {
-			return hashlist.contains(s);
+
+	/**
+	 * Reads up to 8 bytes of the digest starting at offset as a big endian long, padding with zeros
+	 */
+	private static long pack (ByteBuffer digest, int offset) {
+		int start = digest.position() + offset;
+		int end = Math.min(start + 8, Math.min(digest.limit(), digest.position() + KEY_LENGTH));
+		long value = 0;
+		int shift = 56;
+		for (int i = start; i < end; i++, shift -= 8) {
+			value |= (digest.get(i) & 0xFFL) << shift;
 		}
+		return value;
 	}
-	
-	public void printList(String k) {
-		synchronized (hashlist) {
-			for (String s : hashlist) {
-				System.out.println(s);
-//				System.out.println(s + " " + k + "\t Equals?: " + s.equals(k));
-//				System.out.println(s.length());
-//				System.out.println(Arrays.toString(s.getBytes()));
-//				System.out.println(k.length());
-//				System.out.println(Arrays.toString(k.getBytes()));
+
+	/**
+	 * Digests are already uniform, but short ones leave most of the key zero, so fold every part in
+	 */
+	private static long mix (long k0, long k1, int k2) {
+		long h = k0 ^ Long.rotateLeft(k1, 21) ^ ((long) k2 << 11);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long slotHash (boolean keyedById, long k0, long k1, int k2, long requestId) {
+		return keyedById ? mix(requestId, 0, 0) : mix(k0, k1, k2);
+	}
+
+	/**
+	 * One open addressing table with linear probing. Removed entries leave a tombstone
+	 * that is dropped the next time the table is rebuilt.
+	 */
+	private static class Stripe {
+		private static final byte EMPTY = 0;
+		private static final byte FULL = 1;
+		private static final byte REMOVED = 2;
+
+		private final boolean keyedById;
+		private byte [] state;
+		private long [] key0;
+		private long [] key1;
+		private int [] key2;
+		private long [] ids;
+		private int [] owners;
+		private long [] sentAt;
+		private int mask;
+		// Full and removed slots, kept under half the table
+		private int used = 0;
+		private int live = 0;
+
+		Stripe (int capacity, boolean keyedById) {
+			this.keyedById = keyedById;
+			allocate(capacity);
+		}
+
+		private void allocate (int capacity) {
+			state = new byte [capacity];
+			key0 = new long [capacity];
+			key1 = new long [capacity];
+			key2 = new int [capacity];
+			ids = new long [capacity];
+			owners = new int [capacity];
+			sentAt = new long [capacity];
+			mask = capacity - 1;
+			used = 0;
+			live = 0;
+		}
+
+		synchronized void put (long k0, long k1, int k2, int hash, long id, int owner, long time) {
+			if ((used + 1) * 2 > state.length) {
+				rebuild(live * 4 > state.length ? state.length * 2 : state.length);
+			}
+			int i = hash & mask;
+			// Reuse the first tombstone on the probe path
+			while (state[i] == FULL) {
+				i = (i + 1) & mask;
+			}
+			if (state[i] == EMPTY) {
+				used++;
+			}
+			state[i] = FULL;
+			key0[i] = k0;
+			key1[i] = k1;
+			key2[i] = k2;
+			ids[i] = id;
+			owners[i] = owner;
+			sentAt[i] = time;
+			live++;
+		}
+
+		/**
+		 * @param matchDigest - false to match on the id alone, ids are unique so the owner is not checked either
+		 */
+		synchronized long remove (long k0, long k1, int k2, int hash, long id, int owner, boolean matchDigest) {
+			int i = hash & mask;
+			while (state[i] != EMPTY) {
+				if (state[i] == FULL && (id == ANY_ID || ids[i] == id) && (!matchDigest
+						|| (owners[i] == owner && key0[i] == k0 && key1[i] == k1 && key2[i] == k2))) {
+					state[i] = REMOVED;
+					live--;
+					return sentAt[i];
+				}
+				i = (i + 1) & mask;
+			}
+			return NOT_FOUND;
+		}
+
+		synchronized int removeOwner (int owner) {
+			int removed = 0;
+			for (int i = 0; i < state.length; i++) {
+				if (state[i] == FULL && owners[i] == owner) {
+					state[i] = REMOVED;
+					removed++;
+				}
+			}
+			live -= removed;
+			return removed;
+		}
+
+		private void rebuild (int capacity) {
+			byte [] oldState = state;
+			long [] oldKey0 = key0;
+			long [] oldKey1 = key1;
+			int [] oldKey2 = key2;
+			long [] oldIds = ids;
+			int [] oldOwners = owners;
+			long [] oldSentAt = sentAt;
+			allocate(capacity);
+			for (int j = 0; j < oldState.length; j++) {
+				if (oldState[j] != FULL) {
+					continue;
+				}
+				int i = (int) slotHash(keyedById, oldKey0[j], oldKey1[j], oldKey2[j], oldIds[j]) & mask;
+				while (state[i] != EMPTY) {
+					i = (i + 1) & mask;
+				}
+				state[i] = FULL;
+				key0[i] = oldKey0[j];
+				key1[i] = oldKey1[j];
+				key2[i] = oldKey2[j];
+				ids[i] = oldIds[j];
+				owners[i] = oldOwners[j];
+				sentAt[i] = oldSentAt[j];
+				used++;
+				live++;
 			}
 		}
 	}
@@ -0,0 +1,171 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import cs455.scaling.util.LatencyHistogram;
+
+/**
+ * Simulates many clients on a handful of selector threads, so a single machine can put
+ * thousands of connections on the server. Clients are spread round-robin over the workers,
+ * and are connected all at once or across a ramp-up period.
+ * @author Brandt Reutimann
+ */
+public class LoadGenerator {
+	private final ClientConfig config;
+	private final int numClients;
+	private final LoadWorker [] workers;
+	private final Thread [] workerThreads;
+	private volatile boolean stopped = false;
+	// Round trip of every response, from when its request was due
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private long lastDisplay = System.nanoTime();
+
+	public LoadGenerator (ClientConfig config, int numClients) throws IOException {
+		this.config = config;
+		this.numClients = numClients;
+		SocketAddress server = new InetSocketAddress(InetAddress.getByName(config.getHost()), config.getPort());
+		this.workers = new LoadWorker [Math.min(config.getSelectorThreads(), Math.max(1, numClients))];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new LoadWorker("LoadWorker-" + i, config, server, latency);
+		}
+		this.workerThreads = new Thread [workers.length];
+	}
+
+	/**
+	 * Starts the workers, and connects the clients from a separate thread so the ramp does not block the caller
+	 */
+	public void start () {
+		for (int i = 0; i < workers.length; i++) {
+			workerThreads[i] = new Thread(workers[i], workers[i].getName());
+			workerThreads[i].start();
+		}
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				rampUp();
+			}
+		}, "LoadRamp").start();
+	}
+
+	/**
+	 * Opens client i at i / n of the ramp, or at the start of its step when ramping in steps
+	 */
+	private void rampUp () {
+		long rampNanos = TimeUnit.SECONDS.toNanos(config.getRampUpSeconds());
+		int steps = config.getRampSteps();
+		long start = System.nanoTime();
+		for (int i = 0; i < numClients; i++) {
+			long offset;
+			if (steps > 0) {
+				offset = rampNanos * ((long) i * steps / numClients) / steps;
+			} else {
+				offset = rampNanos * i / numClients;
+			}
+			long wait;
+			while ((wait = start + offset - System.nanoTime()) > 0 && !stopped) {
+				LockSupport.parkNanos(wait);
+			}
+			if (stopped) {
+				return;
+			}
+			try {
+				int factor = i < config.getHeavyClients() ? config.getHeavyFactor() : 1;
+				workers[i % workers.length].addClient(factor);
+			} catch (IOException e) {
+				System.err.println("Unable to open load client: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Closes every client and stops the workers, blocking until their threads are done
+	 */
+	public void stop () {
+		stopped = true;
+		for (LoadWorker worker : workers) {
+			worker.stop();
+		}
+		for (Thread thread : workerThreads) {
+			if (thread == null) {
+				continue;
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * What the clients saw since the last call. Sent, received and rejected count the interval,
+	 * unrecognized and dropped clients count from the start.
+	 */
+	public static class Interval {
+		public final double seconds;
+		public final int connections;
+		public final long sent;
+		public final long received;
+		public final long rejected;
+		public final long pending;
+		public final long unrecognized;
+		public final long failed;
+		public final LatencyHistogram.Snapshot latency;
+
+		private Interval (double seconds, int connections, long sent, long received, long rejected, long pending,
+				long unrecognized, long failed, LatencyHistogram.Snapshot latency) {
+			this.seconds = seconds;
+			this.connections = connections;
+			this.sent = sent;
+			this.received = received;
+			this.rejected = rejected;
+			this.pending = pending;
+			this.unrecognized = unrecognized;
+			this.failed = failed;
+			this.latency = latency;
+		}
+	}
+
+	/**
+	 * @return the totals across every worker since the last call, and starts a new interval
+	 */
+	public Interval collectAndReset () {
+		long now = System.nanoTime();
+		double seconds = (now - lastDisplay) / 1e9;
+		lastDisplay = now;
+		int connections = 0;
+		long sent = 0, received = 0, rejected = 0, pending = 0, unrecognized = 0, failed = 0;
+		for (LoadWorker worker : workers) {
+			connections += worker.getConnections();
+			sent += worker.getAndResetSent();
+			received += worker.getAndResetReceived();
+			rejected += worker.getAndResetRejected();
+			pending += worker.getPendingRequests().size();
+			unrecognized += worker.getUnrecognized();
+			failed += worker.getFailed();
+		}
+		return new Interval(seconds, connections, sent, received, rejected, pending, unrecognized, failed,
+				latency.snapshotAndReset());
+	}
+
+	/**
+	 * Prints the totals across every worker since the last call
+	 */
+	public void displayStatsAndReset () {
+		Interval interval = collectAndReset();
+		String dateStr = new SimpleDateFormat("yyyy.MM.dd 'at' HH:mm:ss").format(new Date());
+		System.out.printf("[%s] Clients: %d/%d, Sent: %d (%.1f/s), Received: %d (%.1f/s), Rejected: %d, "
+				+ "Pending: %d, Unrecognized: %d, Dropped Clients: %d\n", dateStr, interval.connections, numClients,
+				interval.sent, interval.sent / interval.seconds, interval.received, interval.received / interval.seconds,
+				interval.rejected, interval.pending, interval.unrecognized, interval.failed);
+		System.out.println("Round trip: " + interval.latency);
+	}
+}
@@ -0,0 +1,281 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.util.HashedTimerWheel;
+import cs455.scaling.util.LatencyHistogram;
+import cs455.scaling.util.MessageHasher;
+
+/**
+ * A selector thread that drives any number of simulated clients. Sends are paced by a timer
+ * wheel that the loop advances after every select, and requests are built in one scratch
+ * buffer shared by all of the worker's clients.
+ * @author Brandt Reutimann
+ */
+class LoadWorker implements Runnable {
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int WHEEL_SIZE = 1024;
+	private final String name;
+	private final ClientConfig config;
+	private final SocketAddress server;
+	private final Selector selector;
+	private final HashedTimerWheel timer = new HashedTimerWheel(TICK_NANOS, WHEEL_SIZE);
+	// Requests sent by every client of this worker and not yet answered, owned by the client's id
+	private final HashList pendingRequests;
+	private final AtomicInteger nextClientId = new AtomicInteger(0);
+	// Request ids are unique across the worker's clients, so an ERROR frame names one request
+	private long nextRequestId = 0;
+	// Clients waiting to be connected on this worker's thread
+	private final Queue<SimulatedClient> pendingConnects = new ConcurrentLinkedQueue<SimulatedClient>();
+	private final ByteBuffer scratch;
+	private final ByteBuffer digest = ByteBuffer.allocate(HashFunctions.MAX_DIGEST_LENGTH);
+	private final Random random = new Random();
+	// Reseeded with the payload's number when only a few distinct payloads are sent
+	private final Random payloadRandom = new Random();
+	// Stats, read by the generator's display thread
+	private final AtomicInteger connections = new AtomicInteger(0);
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong received = new AtomicLong(0);
+	private final AtomicLong unrecognized = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private volatile boolean stopped = false;
+
+	// Shared by every worker of the generator
+	private final LatencyHistogram latency;
+
+	LoadWorker (String name, ClientConfig config, SocketAddress server, LatencyHistogram latency) throws IOException {
+		this.name = name;
+		this.latency = latency;
+		this.config = config;
+		this.server = server;
+		this.selector = Selector.open();
+		this.pendingRequests = new HashList(config.getWireFormat() != WireFormat.LEGACY);
+		this.scratch = ByteBuffer.allocateDirect(config.getWireFormat().headerSize() + config.getPayloadSize());
+	}
+
+	String getName () {
+		return name;
+	}
+
+	Selector getSelector () {
+		return selector;
+	}
+
+	HashedTimerWheel getTimer () {
+		return timer;
+	}
+
+	HashList getPendingRequests () {
+		return pendingRequests;
+	}
+
+	long nextRequestId () {
+		return nextRequestId++;
+	}
+
+	/**
+	 * Opens a new client on this worker. Safe to call from any thread.
+	 * @param factor - times the configured load the client offers
+	 */
+	void addClient (int factor) throws IOException {
+		pendingConnects.add(new SimulatedClient(this, nextClientId.getAndIncrement(), config, factor));
+		selector.wakeup();
+	}
+
+	/**
+	 * Fills the scratch buffer with a request of random bytes.
+	 * The position is left at the start of the payload, the buffer is only valid until the next call.
+	 */
+	ByteBuffer fillRequest (WireFormat format, long requestId, int payloadSize) {
+		scratch.clear();
+		format.writeHeader(scratch, WireFormat.TYPE_REQUEST, requestId, payloadSize);
+		int payloadStart = scratch.position();
+		Random source = random;
+		if (config.getDistinctPayloads() > 0) {
+			payloadRandom.setSeed(random.nextInt(config.getDistinctPayloads()));
+			source = payloadRandom;
+		}
+		while (scratch.remaining() >= Long.BYTES) {
+			scratch.putLong(source.nextLong());
+		}
+		while (scratch.hasRemaining()) {
+			scratch.put((byte) source.nextInt());
+		}
+		scratch.flip();
+		scratch.position(payloadStart);
+		return scratch;
+	}
+
+	/**
+	 * Hashes data from its position without moving it
+	 * @return the digest, only valid until the next call
+	 */
+	ByteBuffer hashPayload (HashFunction function, ByteBuffer data) {
+		data.mark();
+		digest.clear();
+		MessageHasher.hash(function, data, digest);
+		digest.flip();
+		data.reset();
+		return digest;
+	}
+
+	void connectionOpened () {
+		connections.incrementAndGet();
+	}
+
+	void connectionClosed (boolean wasOpen) {
+		if (wasOpen) {
+			connections.decrementAndGet();
+		}
+		if (!stopped) {
+			failed.incrementAndGet();
+		}
+	}
+
+	void requestSent () {
+		sent.incrementAndGet();
+	}
+
+	void responseReceived (long roundTrip) {
+		received.incrementAndGet();
+		latency.record(roundTrip);
+	}
+
+	void responseUnrecognized () {
+		unrecognized.incrementAndGet();
+	}
+
+	void requestRejected () {
+		rejected.incrementAndGet();
+	}
+
+	int getConnections () {
+		return connections.get();
+	}
+
+	long getAndResetSent () {
+		return sent.getAndSet(0);
+	}
+
+	long getAndResetReceived () {
+		return received.getAndSet(0);
+	}
+
+	long getAndResetRejected () {
+		return rejected.getAndSet(0);
+	}
+
+	long getUnrecognized () {
+		return unrecognized.get();
+	}
+
+	long getFailed () {
+		return failed.get();
+	}
+
+	private void connectPendingClients () {
+		SimulatedClient client;
+		while ((client = pendingConnects.poll()) != null) {
+			try {
+				client.connect(server);
+			} catch (IOException e) {
+				client.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Blocks for ready keys, but wakes up in time for the next tick of the timer wheel
+	 */
+	private void select () throws IOException {
+		if (timer.isEmpty()) {
+			selector.select();
+			return;
+		}
+		long wait = timer.nanosUntilNextTick(System.nanoTime());
+		if (wait == 0) {
+			selector.selectNow();
+		} else {
+			selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+		}
+	}
+
+	/**
+	 * Ends the loop, which then closes every client. Safe to call from any thread.
+	 */
+	void stop () {
+		stopped = true;
+		selector.wakeup();
+	}
+
+	private void closeClients () {
+		for (SelectionKey key : selector.keys()) {
+			((SimulatedClient) key.attachment()).close();
+		}
+		SimulatedClient client;
+		while ((client = pendingConnects.poll()) != null) {
+			client.close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.err.println(name + " failed to close its selector: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void run () {
+		while (!stopped) {
+			try {
+				select();
+				connectPendingClients();
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					SimulatedClient client = (SimulatedClient) key.attachment();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isConnectable()) {
+						try {
+							client.finishConnect();
+						} catch (IOException e) {
+							client.fail(e);
+						}
+						continue;
+					}
+					if (key.isWritable()) {
+						client.write();
+					}
+					if (key.isValid() && key.isReadable()) {
+						client.read();
+					}
+				}
+				timer.advance(System.nanoTime());
+			} catch (CancelledKeyException e) {
+				continue;
+			} catch (IOException e) {
+				System.err.println(name + " select operation failed: " + e.getMessage());
+				break;
+			}
+		}
+		closeClients();
+	}
+}
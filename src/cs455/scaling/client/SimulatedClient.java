@@ -0,0 +1,319 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+import cs455.scaling.protocol.ProtocolException;
+import cs455.scaling.protocol.WireFormat;
+
+/**
+ * One connection of the load generator. It has no thread of its own, every method runs on
+ * the selector thread of the LoadWorker that owns it.
+ *
+ * In open mode sends are paced by the worker's timer wheel. Each request is stamped with the
+ * time it was meant to go out rather than when it did, so a server that pushes back shows up
+ * as latency instead of quietly lowering the rate. In closed mode every response triggers the
+ * next request.
+ * @author Brandt Reutimann
+ */
+class SimulatedClient {
+	private enum State { CONNECTING, HELLO, RUNNING, DEAD }
+	// Open mode sends at most this many overdue requests per wakeup, so one client can not hog the worker
+	private static final int MAX_SENDS_PER_WAKEUP = 64;
+
+	private final LoadWorker worker;
+	// Owner of this client's entries in the worker's pending requests
+	private final int id;
+	private final ClientConfig config;
+	private final WireFormat format;
+	private final SocketChannel channel;
+	private SelectionKey key;
+	private State state = State.CONNECTING;
+	private HashFunction hashFunction;
+	// Response being read. A framed response is read header first, then as much payload as the header says.
+	private ByteBuffer receiveBuffer;
+	private int firstRead;
+	// The unwritten tail of a request the socket did not take, null when nothing is pending
+	private ByteBuffer leftover;
+	// Open mode, when the next request is due and the gap between requests
+	private final long periodNanos;
+	private long nextSendAt;
+	private final Runnable sendDue = new Runnable() {
+		@Override
+		public void run() {
+			sendDue(System.nanoTime());
+		}
+	};
+	// Closed mode, requests owed to the server because a response came back
+	private int owed = 0;
+	// Closed mode, requests kept in flight
+	private final int concurrency;
+
+	/**
+	 * @param id - unique among the worker's clients
+	 * @param factor - times the configured rate, or concurrency in closed mode, this client offers
+	 */
+	SimulatedClient (LoadWorker worker, int id, ClientConfig config, int factor) throws IOException {
+		this.worker = worker;
+		this.id = id;
+		this.config = config;
+		this.format = config.getWireFormat();
+		this.hashFunction = config.getHashFunction();
+		this.periodNanos = 1000000000L / ((long) config.getSendRate() * factor);
+		this.concurrency = config.getConcurrency() * factor;
+		this.channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		config.getSocketTuning().applyTo(channel);
+	}
+
+	/**
+	 * Starts a non-blocking connect, and registers with the worker's selector
+	 */
+	void connect (SocketAddress server) throws IOException {
+		key = channel.register(worker.getSelector(), 0, this);
+		if (channel.connect(server)) {
+			connected();
+		} else {
+			key.interestOps(SelectionKey.OP_CONNECT);
+		}
+	}
+
+	void finishConnect () throws IOException {
+		if (channel.finishConnect()) {
+			connected();
+		}
+	}
+
+	/**
+	 * A framed client first asks for its hash with a HELLO, the legacy client starts right away
+	 */
+	private void connected () throws IOException {
+		worker.connectionOpened();
+		if (format != WireFormat.FRAMED) {
+			start();
+			return;
+		}
+		state = State.HELLO;
+		ByteBuffer hello = ByteBuffer.allocate(WireFormat.HEADER_SIZE + 1);
+		format.writeHeader(hello, WireFormat.TYPE_HELLO, 0, 1);
+		hello.put(hashFunction.getId());
+		hello.flip();
+		channel.write(hello);
+		if (hello.hasRemaining()) {
+			leftover = hello;
+		}
+		receiveBuffer = ByteBuffer.allocate(WireFormat.HEADER_SIZE + 1);
+		firstRead = receiveBuffer.capacity();
+		updateInterest();
+	}
+
+	private void start () throws IOException {
+		state = State.RUNNING;
+		receiveBuffer = ByteBuffer.allocate(format.headerSize() + HashFunctions.MAX_DIGEST_LENGTH);
+		firstRead = format == WireFormat.LEGACY ? hashFunction.getDigestLength() : format.headerSize();
+		receiveBuffer.limit(firstRead);
+		if (config.getLoadMode() == ClientConfig.LoadMode.OPEN) {
+			nextSendAt = System.nanoTime();
+			sendDue(nextSendAt);
+		} else {
+			owed = concurrency;
+			sendOwed();
+		}
+	}
+
+	/**
+	 * Sends every request whose time has come, then sets a timer for the next one.
+	 * If the socket pushes back the rest wait for it to become writable.
+	 */
+	private void sendDue (long now) {
+		if (state != State.RUNNING) {
+			return;
+		}
+		try {
+			int sent = 0;
+			while (leftover == null && nextSendAt <= now && sent++ < MAX_SENDS_PER_WAKEUP) {
+				sendRequest(nextSendAt);
+				nextSendAt += periodNanos;
+			}
+			if (leftover == null) {
+				worker.getTimer().scheduleAt(sendDue, nextSendAt);
+			}
+			updateInterest();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void sendOwed () throws IOException {
+		while (leftover == null && owed > 0) {
+			owed--;
+			sendRequest(System.nanoTime());
+		}
+		updateInterest();
+	}
+
+	/**
+	 * Builds a request of random bytes in the worker's scratch buffer, remembers its hash, and writes it
+	 * @param sentAt - when the request is considered sent, for the round trip time
+	 */
+	private void sendRequest (long sentAt) throws IOException {
+		long requestId = worker.nextRequestId();
+		ByteBuffer request = worker.fillRequest(format, requestId, config.getPayloadSize());
+		ByteBuffer digest = worker.hashPayload(hashFunction, request);
+		worker.getPendingRequests().add(digest, requestId, id, sentAt);
+		request.rewind();	// Send the header too
+		channel.write(request);
+		if (request.hasRemaining()) {
+			leftover = ByteBuffer.allocate(request.remaining());
+			leftover.put(request);
+			leftover.flip();
+		}
+		worker.requestSent();
+	}
+
+	void write () {
+		try {
+			channel.write(leftover);
+			if (leftover.hasRemaining()) {
+				return;
+			}
+			leftover = null;
+			if (state != State.RUNNING) {
+				updateInterest();
+			} else if (config.getLoadMode() == ClientConfig.LoadMode.OPEN) {
+				sendDue(System.nanoTime());
+			} else {
+				sendOwed();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	void read () {
+		try {
+			int read;
+			while ((read = channel.read(receiveBuffer)) > 0) {
+				if (receiveBuffer.hasRemaining()) {
+					continue;
+				}
+				if (state == State.HELLO) {
+					receiveBuffer.flip();
+					helloReceived(receiveBuffer);
+					continue;	// start replaced the buffer
+				}
+				if (format != WireFormat.LEGACY && receiveBuffer.position() == format.headerSize()) {
+					int length = WireFormat.readHeader(receiveBuffer, HashFunctions.MAX_DIGEST_LENGTH);
+					receiveBuffer.limit(format.headerSize() + length);
+					if (receiveBuffer.hasRemaining()) {
+						continue;
+					}
+				}
+				receiveBuffer.flip();
+				responseReceived(receiveBuffer);
+				receiveBuffer.clear();
+				receiveBuffer.limit(firstRead);
+			}
+			if (read == -1) {
+				throw new IOException("Server closed the connection");
+			}
+			if (state == State.RUNNING && config.getLoadMode() == ClientConfig.LoadMode.CLOSED) {
+				sendOwed();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void helloReceived (ByteBuffer hello) throws IOException {
+		WireFormat.readHeader(hello, 1);
+		if (hello.get(WireFormat.TYPE_OFFSET) != WireFormat.TYPE_HELLO) {
+			throw new ProtocolException("Expected a HELLO from the server");
+		}
+		HashFunction agreed = HashFunctions.forId(hello.get(WireFormat.HEADER_SIZE));
+		if (agreed == null) {
+			throw new ProtocolException("Server chose an unknown hash function");
+		}
+		hashFunction = agreed;
+		start();
+	}
+
+	private void responseReceived (ByteBuffer response) throws ProtocolException {
+		long requestId = HashList.ANY_ID;
+		if (format != WireFormat.LEGACY) {
+			byte type = response.get(WireFormat.TYPE_OFFSET);
+			requestId = response.getLong(WireFormat.REQUEST_ID_OFFSET);
+			if (type == WireFormat.TYPE_ERROR) {
+				requestRejected(requestId);
+				return;
+			}
+			if (type != WireFormat.TYPE_RESPONSE) {
+				throw new ProtocolException("Expected a response from the server");
+			}
+			response.position(format.headerSize());
+		}
+		// Legacy responses carry no id, the owner keeps clients with the same payloads apart
+		long sentAt = worker.getPendingRequests().remove(response, requestId, id);
+		if (sentAt == HashList.NOT_FOUND) {
+			worker.responseUnrecognized();
+		} else {
+			worker.responseReceived(System.nanoTime() - sentAt);
+		}
+		if (config.getLoadMode() == ClientConfig.LoadMode.CLOSED) {
+			owed++;
+		}
+	}
+
+	/**
+	 * The server had no room for the request. It is counted apart from the responses, and in
+	 * closed mode its slot is handed to a new request.
+	 */
+	private void requestRejected (long requestId) {
+		if (worker.getPendingRequests().removeById(requestId) == HashList.NOT_FOUND) {
+			worker.responseUnrecognized();
+		} else {
+			worker.requestRejected();
+		}
+		if (config.getLoadMode() == ClientConfig.LoadMode.CLOSED) {
+			owed++;
+		}
+	}
+
+	private void updateInterest () {
+		if (key.isValid()) {
+			key.interestOps(SelectionKey.OP_READ | (leftover != null ? SelectionKey.OP_WRITE : 0));
+		}
+	}
+
+	void fail (IOException e) {
+		if (state == State.DEAD) {
+			return;
+		}
+		System.err.println("Load client dropped: " + e.getMessage());
+		close();
+	}
+
+	void close () {
+		if (state == State.DEAD) {
+			return;
+		}
+		boolean wasOpen = state != State.CONNECTING;
+		state = State.DEAD;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close load client: " + e.getMessage());
+		}
+		// Nothing will answer them now
+		worker.getPendingRequests().removeOwner(id);
+		worker.connectionClosed(wasOpen);
+	}
+}
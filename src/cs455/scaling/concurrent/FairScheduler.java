@@ -0,0 +1,353 @@
+package cs455.scaling.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cs455.scaling.tasks.Task;
+import cs455.scaling.util.LatencyHistogram;
+
+/**
+ * A fixed set of workers fed by deficit round-robin across flows instead of one FIFO queue.
+ * Every task belongs to the flow named by its flow key, the connection it serves, and each
+ * flow has a queue of its own. Workers visit the flows with queued tasks in turn, and a flow
+ * may run as many tasks per turn as its weight, so a connection that keeps hundreds of requests
+ * queued gets the same share of the workers as one that keeps a single request queued.
+ * Every task costs the same, which makes the shares count requests, as the server's per
+ * client throughput does.
+ *
+ * The flows sit behind one lock, held only to queue or take a task. Under overload the task
+ * shed is the oldest of the longest flow, so the heaviest client loses work first.
+ * @author Brandt Reutimann
+ */
+public class FairScheduler implements TaskExecutor {
+	// Flow of tasks that serve no single connection
+	private static final Object SHARED_FLOW = new Object();
+	private final int numberThreads;
+	private final int capacity;
+	private final Thread [] workerThreads;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	// Every flow with queued tasks, by key and in visiting order. Guarded by lock.
+	private final Map<Object, Flow> flows = new HashMap<Object, Flow>();
+	private final ArrayDeque<Flow> active = new ArrayDeque<Flow>();
+	private int size = 0;
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final LatencyHistogram serviceTime = new LatencyHistogram();
+	private volatile boolean started = false;
+	private volatile boolean draining = false;
+	private volatile boolean stopped = false;
+
+	private static class Flow {
+		final Object key;
+		final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+		// Tasks the flow may still run this turn
+		int deficit = 0;
+
+		Flow (Object key) {
+			this.key = key;
+		}
+	}
+
+	public FairScheduler (int nThreads, int capacity) {
+		this.numberThreads = nThreads;
+		this.capacity = capacity;
+		this.workerThreads = new Thread [nThreads];
+		for (int i = 0; i < nThreads; i++) {
+			workerThreads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "FairWorker-" + i);
+		}
+	}
+
+	@Override
+	public void initialize () {
+		for (Thread worker : workerThreads) {
+			worker.start();
+		}
+		started = true;
+	}
+
+	/**
+	 * Queues the task on its flow, waiting while the scheduler holds capacity tasks.
+	 * A scheduler that is not running rejects the task instead.
+	 */
+	@Override
+	public void offerTask (Task task) {
+		if (!started) {
+			task.reject();
+			return;
+		}
+		boolean queued = false;
+		lock.lock();
+		try {
+			while (size >= capacity && !stopped) {
+				notFull.awaitUninterruptibly();
+			}
+			// Checked under the lock the workers take tasks with, so a task is never queued after they leave
+			if (!draining && !stopped) {
+				enqueue(task);
+				queued = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (!queued) {
+			task.reject();
+		}
+	}
+
+	@Override
+	public boolean tryOfferTask (Task task) {
+		if (!started) {
+			task.reject();
+			return true;
+		}
+		lock.lock();
+		try {
+			if (size >= capacity) {
+				return false;
+			}
+			if (!draining && !stopped) {
+				enqueue(task);
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		// Shut down since the started check, the task is taken and rejected
+		task.reject();
+		return true;
+	}
+
+	/**
+	 * A new flow joins the end of the round, so it waits at most one turn of every other flow
+	 */
+	private void enqueue (Task task) {
+		task.markEnqueued();
+		Object key = task.getFlowKey() == null ? SHARED_FLOW : task.getFlowKey();
+		Flow flow = flows.get(key);
+		if (flow == null) {
+			flow = new Flow(key);
+			flows.put(key, flow);
+			active.addLast(flow);
+		}
+		flow.tasks.addLast(task);
+		size++;
+		notEmpty.signal();
+	}
+
+	/**
+	 * Takes the next task in round-robin order, waiting for one unless the scheduler is stopping
+	 * @return the task, or null once the worker should exit
+	 */
+	private Task take () throws InterruptedException {
+		lock.lock();
+		try {
+			while (active.isEmpty()) {
+				if (stopped || draining) {
+					return null;
+				}
+				notEmpty.await();
+			}
+			if (stopped) {
+				return null;
+			}
+			Flow flow = active.peekFirst();
+			if (flow.deficit <= 0) {
+				flow.deficit += Math.max(1, flow.tasks.peekFirst().getFlowWeight());
+			}
+			Task task = flow.tasks.pollFirst();
+			flow.deficit--;
+			if (flow.tasks.isEmpty()) {
+				// An idle flow keeps no credit, and is forgotten until it has work again
+				active.pollFirst();
+				flows.remove(flow.key);
+			} else if (flow.deficit <= 0) {
+				active.addLast(active.pollFirst());
+			}
+			size--;
+			notFull.signal();
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void work () {
+		while (true) {
+			Task task;
+			try {
+				task = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (task == null) {
+				return;
+			}
+			long startedAt = System.nanoTime();
+			queueWait.record(startedAt - task.getEnqueuedAt());
+			if (task.execute()) {
+				// Only a task that ran has a service time, not one cancelled or failed while it waited
+				if (task.isSucceeded()) {
+					serviceTime.record(System.nanoTime() - startedAt);
+				}
+			} else {
+				System.err.printf("%s failed a task, because of:\n%s", Thread.currentThread().getName(),
+						task.getFailure().getMessage());
+				task.getFailure().printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest task of the flow with the most queued, or null if nothing is queued
+	 */
+	@Override
+	public Task shedOldestTask () {
+		lock.lock();
+		try {
+			Flow longest = null;
+			for (Flow flow : active) {
+				if (longest == null || flow.tasks.size() > longest.tasks.size()) {
+					longest = flow;
+				}
+			}
+			if (longest == null) {
+				return null;
+			}
+			Task task = longest.tasks.pollFirst();
+			if (longest.tasks.isEmpty()) {
+				active.remove(longest);
+				flows.remove(longest.key);
+			}
+			size--;
+			notFull.signal();
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getQueueDepth () {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return flows with queued tasks
+	 */
+	public int getActiveFlows () {
+		lock.lock();
+		try {
+			return active.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public LatencyHistogram getQueueWaitHistogram () {
+		return queueWait;
+	}
+
+	@Override
+	public LatencyHistogram getServiceTimeHistogram () {
+		return serviceTime;
+	}
+
+	@Override
+	public void closePoolNow () {
+		started = false;
+		stop();
+		for (Thread worker : workerThreads) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		rejectQueued();
+	}
+
+	/**
+	 * Lets every queued task run, then stops the workers. Workers still busy at the deadline
+	 * stop after their current task, and whatever is still queued is rejected.
+	 */
+	@Override
+	public boolean shutdown (long timeoutMillis) {
+		started = false;
+		lock.lock();
+		try {
+			draining = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		boolean drained = true;
+		for (Thread worker : workerThreads) {
+			try {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining > 0) {
+					worker.join(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (worker.isAlive()) {
+				drained = false;
+			}
+		}
+		if (!drained) {
+			stop();
+			rejectQueued();
+		}
+		return drained;
+	}
+	
+	/**
+	 * Takes every queued task off its flow and rejects it, once no worker will run it
+	 */
+	private void rejectQueued () {
+		ArrayDeque<Task> abandoned = new ArrayDeque<Task>();
+		lock.lock();
+		try {
+			for (Flow flow : active) {
+				abandoned.addAll(flow.tasks);
+			}
+			active.clear();
+			flows.clear();
+			size = 0;
+		} finally {
+			lock.unlock();
+		}
+		for (Task task : abandoned) {
+			task.reject();
+		}
+	}
+
+	private void stop () {
+		lock.lock();
+		try {
+			stopped = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package cs455.scaling.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs455.scaling.tasks.Task;
+import cs455.scaling.util.LatencyHistogram;
+
+/**
+ * Runs every task on the thread that offers it, it has no threads or queue of its own.
+ * Meant for threads that already own their work, like the virtual thread per connection,
+ * which hash inline and record the time it takes here so the metrics still see it.
+ * @author Brandt Reutimann
+ */
+public class InlineExecutor implements TaskExecutor {
+	// Tasks being run by the threads that offered them
+	private final AtomicInteger running = new AtomicInteger(0);
+	private volatile boolean started = false;
+	// Nothing waits, so this stays empty
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+	@Override
+	public void initialize() {
+		started = true;
+	}
+
+	@Override
+	public void offerTask(Task task) {
+		// Counted before the started check, so a shutdown either waits for the task or the task sees it
+		running.incrementAndGet();
+		try {
+			if (!started) {
+				task.reject();
+				return;
+			}
+			long startedAt = System.nanoTime();
+			if (task.execute()) {
+				if (task.isSucceeded()) {
+					serviceTime.record(System.nanoTime() - startedAt);
+				}
+			} else {
+				System.err.printf("%s failed a task, because of:\n%s", Thread.currentThread().getName(),
+						task.getFailure().getMessage());
+				task.getFailure().printStackTrace();
+			}
+		} finally {
+			running.decrementAndGet();
+		}
+	}
+
+	/**
+	 * The calling thread always has room, unless the executor is not running
+	 */
+	@Override
+	public boolean tryOfferTask(Task task) {
+		offerTask(task);
+		return true;
+	}
+
+	/**
+	 * Every task runs right away, there is never one waiting
+	 */
+	@Override
+	public Task shedOldestTask() {
+		return null;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return 0;
+	}
+
+	@Override
+	public LatencyHistogram getQueueWaitHistogram() {
+		return queueWait;
+	}
+
+	/**
+	 * Callers that run work inline without a task record its time here too
+	 */
+	@Override
+	public LatencyHistogram getServiceTimeHistogram() {
+		return serviceTime;
+	}
+
+	/**
+	 * Stops accepting tasks and waits up to the timeout for the ones running to finish
+	 */
+	@Override
+	public boolean shutdown(long timeoutMillis) {
+		started = false;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (running.get() > 0) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting tasks, the ones running finish on their own threads
+	 */
+	@Override
+	public void closePoolNow() {
+		started = false;
+	}
+}
@@ -0,0 +1,115 @@
+package cs455.scaling.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer ring buffer.
+ * Every slot carries a sequence number that tells producers and consumers whose turn
+ * it is to touch the slot, so the only contended operations are the CAS on the head
+ * and tail counters.
+ *
+ * Algorithm reference is Dmitry Vyukov's bounded MPMC queue:
+ * 		http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+ * @author Brandt Reutimann
+ */
+public class MpmcRingQueue<E> {
+	private final int capacity;
+	private final int mask;
+	private final AtomicReferenceArray<E> slots;
+	private final AtomicLongArray sequences;
+	// Producers claim slots from the tail, consumers from the head
+	private final AtomicLong tail = new AtomicLong(0);
+	private final AtomicLong head = new AtomicLong(0);
+
+	/**
+	 * @param requestedCapacity rounded up to the next power of two
+	 */
+	public MpmcRingQueue (int requestedCapacity) {
+		if (requestedCapacity < 2) {
+			requestedCapacity = 2;
+		}
+		int cap = Integer.highestOneBit(requestedCapacity - 1) << 1;
+		this.capacity = cap;
+		this.mask = cap - 1;
+		this.slots = new AtomicReferenceArray<E>(cap);
+		this.sequences = new AtomicLongArray(cap);
+		for (int i = 0; i < cap; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return false if the queue is full
+	 */
+	public boolean offer (E element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		long pos = tail.get();
+		while (true) {
+			int index = (int) (pos & mask);
+			long seq = sequences.get(index);
+			long diff = seq - pos;
+			if (diff == 0) {
+				// Slot is free for this position, try to claim it
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots.lazySet(index, element);
+					sequences.set(index, pos + 1);	// Publish to consumers
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				// The consumer a full lap behind has not freed this slot yet
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest element, or null if the queue is empty
+	 */
+	public E poll () {
+		long pos = head.get();
+		while (true) {
+			int index = (int) (pos & mask);
+			long seq = sequences.get(index);
+			long diff = seq - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					E element = slots.get(index);
+					slots.lazySet(index, null);
+					sequences.set(index, pos + capacity);	// Hand the slot to the next lap's producer
+					return element;
+				}
+				pos = head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Approximate number of queued elements, exact when there are no concurrent updates.
+	 */
+	public int size () {
+		long size = tail.get() - head.get();
+		if (size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, capacity);
+	}
+
+	public boolean isEmpty () {
+		return size() == 0;
+	}
+
+	public int capacity () {
+		return capacity;
+	}
+}
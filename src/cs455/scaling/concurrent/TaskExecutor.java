@@ -0,0 +1,63 @@
+package cs455.scaling.concurrent;
+
+import cs455.scaling.tasks.Task;
+import cs455.scaling.util.LatencyHistogram;
+
+/**
+ * Something that runs tasks offered by the server.
+ * @author Brandt Reutimann
+ */
+public interface TaskExecutor {
+	
+	/**
+	 * Starts the executor, tasks may be offered afterwards
+	 */
+	void initialize();
+	
+	/**
+	 * Runs the task at some point with Task.execute, which completes it once it has run.
+	 * An executor that is not running rejects the task instead.
+	 */
+	void offerTask(Task task);
+	
+	/**
+	 * Like offerTask, but never waits for room. An executor that is not running rejects
+	 * the task and returns true, the task has been dealt with.
+	 * @return false if the executor is at capacity and did not take the task
+	 */
+	boolean tryOfferTask(Task task);
+	
+	/**
+	 * Takes back the task that has waited longest, so the caller can reject it
+	 * @return the task, or null if nothing is waiting
+	 */
+	Task shedOldestTask();
+	
+	/**
+	 * @return approximate number of tasks waiting to run
+	 */
+	int getQueueDepth();
+	
+	/**
+	 * @return time from a task being offered to a thread starting it
+	 */
+	LatencyHistogram getQueueWaitHistogram();
+	
+	/**
+	 * @return time a task takes to run once started
+	 */
+	LatencyHistogram getServiceTimeHistogram();
+	
+	/**
+	 * Stops the executor, blocking until its threads are done. Tasks still queued are rejected.
+	 */
+	void closePoolNow();
+	
+	/**
+	 * Stops taking tasks, and lets the tasks already taken finish before the threads stop.
+	 * Tasks offered afterwards, and tasks still queued at the timeout, are rejected.
+	 * @param timeoutMillis - longest to wait for the tasks to finish
+	 * @return true if every task finished in time
+	 */
+	boolean shutdown(long timeoutMillis);
+}
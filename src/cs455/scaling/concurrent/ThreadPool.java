@@ -1,33 +1,54 @@
 package cs455.scaling.concurrent;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-
-//import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import cs455.scaling.tasks.Task;
 import cs455.scaling.tasks.TestTask;
+import cs455.scaling.tasks.ValueTask;
+import cs455.scaling.util.LatencyHistogram;
 
 /**
  * Implementation of thread pool class.
  * Objects which implement the task interface may be offered to the threadpool.
  * The pool will allocate a thread to perform the task when there is a thread available.
  * 
+ * Tasks are held in a bounded lock-free ring, so producers and workers never share a lock
+ * and tasks always run outside of the queue. Idle workers park themselves on a second ring
+ * and are unparked one at a time as work arrives.
+ * 
  * Primary reference for this class comes from Ima Miri's blog post: 
  * 		https://www.javacodegeeks.com/2016/12/implement-thread-pool-java.html
  * @author Brandt Reutimann
  */
-public class ThreadPool {
+public class ThreadPool implements TaskExecutor {
+	public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
 	private final int numberThreads;
-//	private LinkedBlockingQueue<Task> taskQueue;
-	private final List<Task> taskQueue = Collections.synchronizedList(new LinkedList<Task>());
+	private final MpmcRingQueue<Task> taskQueue;
+	private final MpmcRingQueue<WorkerThread> idleWorkers;
 	private final WorkerThread [] workerThreads;
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final LatencyHistogram serviceTime = new LatencyHistogram();
 	private boolean debug = false;
-	private boolean started = false;
+	private volatile boolean started = false;
+	// Set by shutdown, workers then leave once the queue is empty instead of waiting for more
+	private volatile boolean draining = false;
+	// Workers that have not left yet, a task queued once there are none is rejected
+	private final AtomicInteger liveWorkers = new AtomicInteger(0);
 
 	public ThreadPool (int nThreads) {
+		this(nThreads, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	public ThreadPool (int nThreads, int queueCapacity) {
 		this.numberThreads = nThreads;
+		this.taskQueue = new MpmcRingQueue<Task>(queueCapacity);
+		// Every worker fits on the idle ring at once, so parking never fails to register
+		this.idleWorkers = new MpmcRingQueue<WorkerThread>(nThreads);
 		this.workerThreads = new WorkerThread [numberThreads];
 		// Create nThread new threads and start them
 		for (int i = 0; i < numberThreads; i++) {
@@ -39,6 +60,7 @@ public class ThreadPool {
 	 * Starts the threads in the pool
 	 */
 	public void initialize () {
+		liveWorkers.set(numberThreads);
 		for (int i = 0; i < numberThreads; i++) {
 			workerThreads[i].start();
 		}
@@ -49,6 +71,7 @@ public class ThreadPool {
 	 * Close thread pool, blocking for all threads to finish their tasks.
 	 */
 	public void closePoolNow () {
+		started = false;
 		for (int i = 0; i < numberThreads; i++) {
 			try {
 				workerThreads[i].killMe();
@@ -57,68 +80,223 @@ public class ThreadPool {
 				e.printStackTrace();
 			}
 		}
+		rejectQueued();
 	}
 	
 	/**
-	 * Offering a task puts it on the queue and notifies a thread waiting for work.
+	 * Lets every queued task run, then stops the workers. Workers still busy at the deadline
+	 * stop after their current task, and whatever is still queued is rejected.
+	 * @return true if the queue was drained and every worker stopped in time
+	 */
+	public boolean shutdown (long timeoutMillis) {
+		started = false;
+		draining = true;
+		for (int i = 0; i < numberThreads; i++) {
+			LockSupport.unpark(workerThreads[i]);
+		}
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		boolean drained = true;
+		for (int i = 0; i < numberThreads; i++) {
+			try {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining > 0) {
+					workerThreads[i].join(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (workerThreads[i].isAlive()) {
+				drained = false;
+			}
+		}
+		if (!drained) {
+			for (int i = 0; i < numberThreads; i++) {
+				workerThreads[i].killMe();
+			}
+		}
+		return drained;
+	}
+	
+	/**
+	 * Offering a task puts it on the queue and unparks a thread waiting for work.
+	 * If the queue is full the caller yields until a worker frees a slot.
+	 * A pool that is not running rejects the task instead.
 	 * @param task
 	 */
 	public void offerTask (Task task) {
 		if (!started) {
-			System.out.println("Initialize the thread pool before offering new tasks");
+			task.reject();
 			return;
 		}
-		synchronized (taskQueue) {
-			taskQueue.add(task);
-			taskQueue.notify();
+		task.markEnqueued();
+		while (!taskQueue.offer(task)) {
+			if (liveWorkers.get() == 0) {
+				task.reject();
+				return;
+			}
+			wakeIdleWorker();
+			Thread.yield();
+		}
+		wakeIdleWorker();
+		rejectIfAbandoned();
+	}
+	
+	/**
+	 * Offers the task, and hands it back as the handle to its completion. A pool that has not
+	 * been started rejects the task instead.
+	 * @return task
+	 */
+	public <T extends Task> T submit (T task) {
+		offerTask(task);
+		return task;
+	}
+	
+	/**
+	 * Puts the task on the queue if there is room, without waiting.
+	 * A pool that is not running rejects the task instead.
+	 * @return false if the queue is full
+	 */
+	public boolean tryOfferTask (Task task) {
+		if (!started) {
+			task.reject();
+			return true;
+		}
+		task.markEnqueued();
+		if (!taskQueue.offer(task)) {
+			return false;
+		}
+		wakeIdleWorker();
+		rejectIfAbandoned();
+		return true;
+	}
+	
+	/**
+	 * A task may pass the started check just before a shutdown, and land on the queue after
+	 * every worker has seen it empty and left. Each worker rejects what is queued once it has
+	 * left, and an offer that finds none left rejects it itself, so either way nothing queued
+	 * stays pending.
+	 */
+	private void rejectIfAbandoned () {
+		if (liveWorkers.get() == 0) {
+			rejectQueued();
+		}
+	}
+	
+	private void rejectQueued () {
+		Task task;
+		while ((task = taskQueue.poll()) != null) {
+			task.reject();
+		}
+	}
+	
+	/**
+	 * @return the task at the head of the queue, or null if it is empty
+	 */
+	public Task shedOldestTask () {
+		return taskQueue.poll();
+	}
+	
+	/**
+	 * @return approximate number of tasks waiting for a worker
+	 */
+	public int getQueueDepth () {
+		return taskQueue.size();
+	}
+	
+	public LatencyHistogram getQueueWaitHistogram () {
+		return queueWait;
+	}
+	
+	public LatencyHistogram getServiceTimeHistogram () {
+		return serviceTime;
+	}
+	
+	public int getNumberThreads () {
+		return numberThreads;
+	}
+	
+	private void wakeIdleWorker () {
+		WorkerThread worker = idleWorkers.poll();
+		if (worker != null) {
+			worker.idle.set(false);
+			LockSupport.unpark(worker);
 		}
 	}
 	
 	private class WorkerThread extends Thread {
 		private volatile boolean isRunning = true;
+		private final AtomicBoolean idle = new AtomicBoolean(false);
 		private String threadName;
 		
 		public WorkerThread (String name) {
+			super(name);
 			this.threadName = name;
 		}
 		
 		public void run() {
+			try {
+				work();
+			} finally {
+				// Nothing will run what is still queued, unless another worker is still busy
+				if (liveWorkers.decrementAndGet() == 0 || !isRunning) {
+					rejectQueued();
+				}
+			}
+		}
+		
+		private void work() {
 			Task task;
 			while (isRunning) {
-				synchronized (taskQueue) {
-					while (taskQueue.isEmpty()) {
-						try {
-							taskQueue.wait();		// Will relinquish the lock on the taskQueue
-						} catch (InterruptedException e) {
-							// I have been interrupted for termination reasons
-							if (!isRunning) {
-								return;
-							}
-							System.err.println(this.threadName + " interrupted while waiting for next task.");
-						}
+				task = taskQueue.poll();
+				if (task == null) {
+					if (draining) {
+						return;
+					}
+					waitForTask();
+					continue;
+				}
+				// More work behind this task, hand it to another sleeping worker
+				if (!taskQueue.isEmpty()) {
+					wakeIdleWorker();
+				}
+				long startedAt = System.nanoTime();
+				queueWait.record(startedAt - task.getEnqueuedAt());
+				// Perform the task, completing it with its result or failure
+				if (task.execute()) {
+					// Only a task that ran has a service time, not one cancelled or failed while it waited
+					if (task.isSucceeded()) {
+						serviceTime.record(System.nanoTime() - startedAt);
 					}
-					// Pop a task from the queue
-					task = taskQueue.remove(0);
-					try {
-						task.run();			// Perform the task.
-						task.setFinished(); // Set the finished flag on the task.
-						if (debug) {
-							System.out.println("Task performed by thread: " + threadName);
-						}
-					} catch (RuntimeException e) {
-						System.err.printf("%s failed a task, because of:\n%s", threadName, e.getMessage());
-						e.printStackTrace();
+					if (debug) {
+						System.out.println("Task performed by thread: " + threadName);
 					}
+				} else {
+					System.err.printf("%s failed a task, because of:\n%s", threadName, task.getFailure().getMessage());
+					task.getFailure().printStackTrace();
 				}
 			}
 		}
 		
+		/**
+		 * Registers this worker as idle and parks it. The queue is checked again after
+		 * registering so a task offered in between is never missed.
+		 */
+		private void waitForTask() {
+			if (idle.compareAndSet(false, true)) {
+				idleWorkers.offer(this);
+			}
+			if (!taskQueue.isEmpty() || !isRunning || draining) {
+				return;
+			}
+			LockSupport.park(this);
+		}
+		
 		/**
 		 * If this thread is waiting for a task then it will be terminated.
 		 */
 		public void killMe() {
 			this.isRunning = false;
-			this.interrupt();
+			LockSupport.unpark(this);
 		}
 	}
 	
@@ -134,6 +312,25 @@ public class ThreadPool {
 		for (int i = 0; i < 10; i++) {
 			tasks[i].waitOnTaskFinished();
 		}
-		threadpool.closePoolNow();
+		// A value computed by the pool, with a follow up stage that runs once it is ready
+		final ValueTask<String> greeting = new ValueTask<String>() {
+			@Override
+			protected String compute() {
+				return "Hello World from " + Thread.currentThread().getName();
+			}
+		};
+		greeting.then(threadpool, new TestTask(10)).whenComplete(new Task.Callback() {
+			@Override
+			public void onComplete(Task task) {
+				System.out.println("Stages done: " + greeting.getNow());
+			}
+		});
+		threadpool.submit(greeting);
+		try {
+			System.out.println(greeting.get(1, TimeUnit.SECONDS));
+		} catch (ExecutionException | TimeoutException | InterruptedException e) {
+			System.err.println("Greeting failed: " + e);
+		}
+		threadpool.shutdown(1000);
 	}
 }
@@ -0,0 +1,164 @@
+package cs455.scaling.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs455.scaling.tasks.Task;
+import cs455.scaling.util.LatencyHistogram;
+
+/**
+ * Runs every task on its own virtual thread instead of a fixed set of workers.
+ * There is no queue, the JVM schedules virtual threads onto its carrier threads.
+ * 
+ * Virtual threads need Java 21. They are looked up reflectively so the rest of the
+ * project still builds and runs on older JVMs, which get an error when this mode is chosen.
+ * @author Brandt Reutimann
+ */
+public class VirtualThreadExecutor implements TaskExecutor {
+	private final ThreadFactory factory;
+	// Most tasks allowed to run at once before tryOfferTask turns tasks away
+	private final int capacity;
+	// Tasks started and not yet finished
+	private final AtomicInteger running = new AtomicInteger(0);
+	private volatile boolean started = false;
+	// Queue wait here is the time to start a virtual thread and get it mounted
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final LatencyHistogram serviceTime = new LatencyHistogram();
+	
+	/**
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public VirtualThreadExecutor(int capacity) {
+		this.factory = newThreadFactory("VirtualTask-");
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * @return a factory for virtual threads named prefix followed by a counter
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public static ThreadFactory newThreadFactory(String prefix) {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer, running "
+					+ System.getProperty("java.version"), e);
+		}
+	}
+
+	@Override
+	public void initialize() {
+		started = true;
+	}
+
+	/**
+	 * An executor that is not running rejects the task, through offerTask
+	 */
+	@Override
+	public boolean tryOfferTask(Task task) {
+		if (started && running.get() >= capacity) {
+			return false;
+		}
+		offerTask(task);
+		return true;
+	}
+
+	/**
+	 * Every task starts right away, there is never one waiting
+	 */
+	@Override
+	public Task shedOldestTask() {
+		return null;
+	}
+
+	@Override
+	public void offerTask(final Task task) {
+		// Counted before the started check, so a shutdown either waits for the task or the task sees it
+		running.incrementAndGet();
+		if (!started) {
+			running.decrementAndGet();
+			task.reject();
+			return;
+		}
+		task.markEnqueued();
+		factory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				long startedAt = System.nanoTime();
+				queueWait.record(startedAt - task.getEnqueuedAt());
+				if (task.execute()) {
+					// Only a task that ran has a service time, not one cancelled or failed while it waited
+					if (task.isSucceeded()) {
+						serviceTime.record(System.nanoTime() - startedAt);
+					}
+				} else {
+					System.err.printf("%s failed a task, because of:\n%s", Thread.currentThread().getName(),
+							task.getFailure().getMessage());
+					task.getFailure().printStackTrace();
+				}
+				running.decrementAndGet();
+			}
+		}).start();
+	}
+
+	/**
+	 * @return tasks started and not yet finished, there is no queue in front of them
+	 */
+	@Override
+	public int getQueueDepth() {
+		return running.get();
+	}
+
+	@Override
+	public LatencyHistogram getQueueWaitHistogram() {
+		return queueWait;
+	}
+
+	@Override
+	public LatencyHistogram getServiceTimeHistogram() {
+		return serviceTime;
+	}
+
+	/**
+	 * Stops accepting tasks and waits up to the timeout for the running ones to finish.
+	 * Virtual threads can not be stopped, any still running carry on in the background.
+	 */
+	@Override
+	public boolean shutdown(long timeoutMillis) {
+		started = false;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (running.get() > 0) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting tasks and waits for the running ones to finish
+	 */
+	@Override
+	public void closePoolNow() {
+		started = false;
+		while (running.get() > 0) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package cs455.scaling.hash;
+
+/**
+ * Keeps one cached digest per thread, so hashing a message never allocates.
+ * @author Brandt Reutimann
+ */
+public abstract class AbstractHashFunction implements HashFunction {
+	private final byte id;
+	private final String name;
+	private final int digestLength;
+	private final ThreadLocal<Digest> threadDigests = new ThreadLocal<Digest>() {
+		@Override
+		protected Digest initialValue() {
+			return newDigest();
+		}
+	};
+	
+	protected AbstractHashFunction(byte id, String name, int digestLength) {
+		this.id = id;
+		this.name = name;
+		this.digestLength = digestLength;
+	}
+
+	@Override
+	public byte getId() {
+		return id;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getDigestLength() {
+		return digestLength;
+	}
+
+	@Override
+	public Digest threadDigest() {
+		Digest digest = threadDigests.get();
+		digest.reset();
+		return digest;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
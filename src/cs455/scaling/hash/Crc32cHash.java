@@ -0,0 +1,39 @@
+package cs455.scaling.hash;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC-32C checksum, which the JVM computes with the CPU's CRC32 instructions where available.
+ * Written as 4 big endian bytes. Catches corruption, but is no defense against tampering.
+ * @author Brandt Reutimann
+ */
+public class Crc32cHash extends AbstractHashFunction {
+	
+	public Crc32cHash(byte id) {
+		super(id, "crc32c", 4);
+	}
+
+	@Override
+	public Digest newDigest() {
+		return new Digest() {
+			private final CRC32C crc = new CRC32C();
+			
+			@Override
+			public void update(ByteBuffer data) {
+				crc.update(data);
+			}
+
+			@Override
+			public void finish(ByteBuffer out) {
+				out.putInt((int) crc.getValue());
+				crc.reset();
+			}
+
+			@Override
+			public void reset() {
+				crc.reset();
+			}
+		};
+	}
+}
@@ -0,0 +1,27 @@
+package cs455.scaling.hash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Running state of one hash computation. A digest may be fed any number of chunks,
+ * so a message never has to be buffered whole. Not thread safe.
+ * @author Brandt Reutimann
+ */
+public interface Digest {
+	
+	/**
+	 * Adds the remaining bytes of data, advancing its position
+	 */
+	void update(ByteBuffer data);
+	
+	/**
+	 * Puts the hash of everything added since the last reset at the position of out,
+	 * and resets the digest for the next message
+	 */
+	void finish(ByteBuffer out);
+	
+	/**
+	 * Discards everything added so far
+	 */
+	void reset();
+}
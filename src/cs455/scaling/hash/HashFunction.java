@@ -0,0 +1,34 @@
+package cs455.scaling.hash;
+
+/**
+ * A hash the server can compute over messages. New functions are made available by
+ * registering them with HashFunctions.
+ * @author Brandt Reutimann
+ */
+public interface HashFunction {
+	
+	/**
+	 * @return the id sent on the wire when a connection negotiates this function
+	 */
+	byte getId();
+	
+	/**
+	 * @return the name used on the command line
+	 */
+	String getName();
+	
+	/**
+	 * @return bytes written by Digest.finish
+	 */
+	int getDigestLength();
+	
+	/**
+	 * @return a new digest, for state that outlives a single call such as a streamed message
+	 */
+	Digest newDigest();
+	
+	/**
+	 * @return a digest owned by the calling thread, reset and ready for a new message
+	 */
+	Digest threadDigest();
+}
@@ -0,0 +1,69 @@
+package cs455.scaling.hash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the hash functions the server and client know about, by name and by wire id.
+ * @author Brandt Reutimann
+ */
+public final class HashFunctions {
+	public static final HashFunction SHA1 = new MessageDigestHash((byte) 1, "sha1", "SHA1", 20);
+	public static final HashFunction SHA256 = new MessageDigestHash((byte) 2, "sha256", "SHA-256", 32);
+	public static final HashFunction CRC32C = new Crc32cHash((byte) 3);
+	public static final HashFunction XXHASH64 = new XxHash64((byte) 4);
+	// Longest digest of the built in functions, response buffers are sized for it
+	public static final int MAX_DIGEST_LENGTH = 32;
+	
+	private static final Map<String, HashFunction> byName = new ConcurrentHashMap<String, HashFunction>();
+	private static final HashFunction [] byId = new HashFunction [256];
+	
+	static {
+		register(SHA1);
+		register(SHA256);
+		register(CRC32C);
+		register(XXHASH64);
+	}
+	
+	private HashFunctions() {}
+	
+	/**
+	 * @throws IllegalArgumentException if the name or id is already taken,
+	 * 		or the digest is longer than MAX_DIGEST_LENGTH
+	 */
+	public static synchronized void register(HashFunction function) {
+		int id = function.getId() & 0xFF;
+		if (byId[id] != null || byName.containsKey(function.getName())) {
+			throw new IllegalArgumentException("Hash function already registered: " + function.getName());
+		}
+		if (function.getDigestLength() > MAX_DIGEST_LENGTH) {
+			throw new IllegalArgumentException("Digest of " + function.getName() + " is too long");
+		}
+		byId[id] = function;
+		byName.put(function.getName(), function);
+	}
+	
+	/**
+	 * @throws IllegalArgumentException for an unknown name
+	 */
+	public static HashFunction forName(String name) {
+		HashFunction function = byName.get(name.toLowerCase());
+		if (function == null) {
+			throw new IllegalArgumentException("Unknown hash function: " + name + ", expected one of " + names());
+		}
+		return function;
+	}
+	
+	/**
+	 * @return the function with the wire id, or null if there is none
+	 */
+	public static HashFunction forId(byte id) {
+		return byId[id & 0xFF];
+	}
+	
+	public static List<String> names() {
+		return new ArrayList<String>(byName.keySet());
+	}
+}
@@ -0,0 +1,65 @@
+package cs455.scaling.hash;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A cryptographic hash backed by a java.security MessageDigest, such as SHA-1 or SHA-256.
+ * @author Brandt Reutimann
+ */
+public class MessageDigestHash extends AbstractHashFunction {
+	private final String algorithm;
+	
+	public MessageDigestHash(byte id, String name, String algorithm, int digestLength) {
+		super(id, name, digestLength);
+		this.algorithm = algorithm;
+	}
+
+	@Override
+	public Digest newDigest() {
+		try {
+			return new JcaDigest(MessageDigest.getInstance(algorithm), getDigestLength());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(algorithm + " is not supported by this JVM", e);
+		}
+	}
+	
+	private static class JcaDigest implements Digest {
+		private final MessageDigest digest;
+		// Used when the output buffer has no backing array
+		private final byte [] scratch;
+		
+		JcaDigest(MessageDigest digest, int digestLength) {
+			this.digest = digest;
+			this.scratch = new byte [digestLength];
+		}
+
+		@Override
+		public void update(ByteBuffer data) {
+			digest.update(data);
+		}
+
+		@Override
+		public void finish(ByteBuffer out) {
+			try {
+				if (out.hasArray()) {
+					digest.digest(out.array(), out.arrayOffset() + out.position(), scratch.length);
+					out.position(out.position() + scratch.length);
+				} else {
+					digest.digest(scratch, 0, scratch.length);
+					out.put(scratch);
+				}
+			} catch (DigestException e) {
+				// Only thrown when out is too small, which is a programming error
+				throw new IllegalArgumentException("Output buffer has no room for the hash", e);
+			}
+		}
+
+		@Override
+		public void reset() {
+			digest.reset();
+		}
+	}
+}
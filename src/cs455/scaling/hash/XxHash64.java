@@ -0,0 +1,142 @@
+package cs455.scaling.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pure Java xxHash64 with a seed of 0, written as 8 big endian bytes.
+ * A fast non-cryptographic hash, see https://github.com/Cyan4973/xxHash for the specification.
+ * @author Brandt Reutimann
+ */
+public class XxHash64 extends AbstractHashFunction {
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+	private static final int STRIPE = 32;
+	
+	public XxHash64(byte id) {
+		super(id, "xxhash64", 8);
+	}
+
+	@Override
+	public Digest newDigest() {
+		return new XxDigest();
+	}
+	
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+	
+	private static long mergeRound(long acc, long value) {
+		acc ^= round(0, value);
+		return acc * PRIME1 + PRIME4;
+	}
+	
+	/**
+	 * Streaming state. Input is consumed a 32 byte stripe at a time, and a partial stripe
+	 * is held back until the next update or the finish.
+	 */
+	private static class XxDigest implements Digest {
+		private final ByteBuffer pending = ByteBuffer.allocate(STRIPE).order(ByteOrder.LITTLE_ENDIAN);
+		private long v1, v2, v3, v4;
+		private long totalLength;
+		
+		XxDigest() {
+			reset();
+		}
+
+		@Override
+		public void reset() {
+			v1 = PRIME1 + PRIME2;
+			v2 = PRIME2;
+			v3 = 0;
+			v4 = -PRIME1;
+			totalLength = 0;
+			pending.clear();
+		}
+
+		@Override
+		public void update(ByteBuffer data) {
+			totalLength += data.remaining();
+			// Top up a partial stripe from the previous update first
+			if (pending.position() > 0) {
+				while (pending.hasRemaining() && data.hasRemaining()) {
+					pending.put(data.get());
+				}
+				if (pending.hasRemaining()) {
+					return;
+				}
+				consumeStripe(pending, 0);
+				pending.clear();
+			}
+			int position = data.position();
+			int limit = data.limit();
+			while (limit - position >= STRIPE) {
+				consumeStripe(data, position);
+				position += STRIPE;
+			}
+			data.position(position);
+			while (data.hasRemaining()) {
+				pending.put(data.get());
+			}
+		}
+		
+		private void consumeStripe(ByteBuffer data, int offset) {
+			v1 = round(v1, readLong(data, offset));
+			v2 = round(v2, readLong(data, offset + 8));
+			v3 = round(v3, readLong(data, offset + 16));
+			v4 = round(v4, readLong(data, offset + 24));
+		}
+
+		@Override
+		public void finish(ByteBuffer out) {
+			long hash;
+			if (totalLength >= STRIPE) {
+				hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+						+ Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+				hash = mergeRound(hash, v1);
+				hash = mergeRound(hash, v2);
+				hash = mergeRound(hash, v3);
+				hash = mergeRound(hash, v4);
+			} else {
+				hash = PRIME5;
+			}
+			hash += totalLength;
+			// Fold in the tail held back in the pending stripe
+			int remaining = pending.position();
+			int offset = 0;
+			while (remaining - offset >= 8) {
+				hash ^= round(0, pending.getLong(offset));
+				hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+				offset += 8;
+			}
+			if (remaining - offset >= 4) {
+				hash ^= (pending.getInt(offset) & 0xFFFFFFFFL) * PRIME1;
+				hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+				offset += 4;
+			}
+			while (offset < remaining) {
+				hash ^= (pending.get(offset) & 0xFF) * PRIME5;
+				hash = Long.rotateLeft(hash, 11) * PRIME1;
+				offset++;
+			}
+			// Avalanche
+			hash ^= hash >>> 33;
+			hash *= PRIME2;
+			hash ^= hash >>> 29;
+			hash *= PRIME3;
+			hash ^= hash >>> 32;
+			out.putLong(hash);
+			reset();
+		}
+		
+		private static long readLong(ByteBuffer data, int offset) {
+			long value = data.getLong(offset);
+			return data.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package cs455.scaling.protocol;
+
+import java.io.IOException;
+import java.nio.channels.ScatteringByteChannel;
+
+import cs455.scaling.hash.HashFunction;
+
+/**
+ * Per connection state that turns a stream of bytes into messages.
+ * Decoders never block, they keep a partial frame between calls until the rest arrives.
+ * @author Brandt Reutimann
+ */
+public interface FrameDecoder {
+	
+	/**
+	 * Reads from a non-blocking channel until a message is complete or the channel has no more bytes.
+	 * @return the next complete message, or null if more bytes are needed
+	 * @throws java.io.EOFException if the peer closed the connection
+	 * @throws ProtocolException if the peer sent a malformed frame
+	 */
+	Message read(ScatteringByteChannel channel) throws IOException;
+	
+	/**
+	 * @return true if bytes already read may hold a frame, so read should be called again even
+	 * 		though the channel has nothing new
+	 */
+	boolean hasBufferedFrame();
+	
+	/**
+	 * Sets the hash used for requests that are hashed while they are streamed in
+	 */
+	void setHashFunction(HashFunction hashFunction);
+	
+	/**
+	 * Releases any partially read frame
+	 */
+	void release();
+}
@@ -0,0 +1,63 @@
+package cs455.scaling.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.util.BufferPool;
+
+/**
+ * Decodes the original assignment format: every request is exactly 8 KB with no header.
+ * @author Brandt Reutimann
+ */
+public class LegacyFrameDecoder implements FrameDecoder {
+	private final BufferPool buffers;
+	private final int messageSize;
+	private HashFunction hashFunction;
+	// Message being accumulated, null between messages
+	private ByteBuffer frame;
+	
+	public LegacyFrameDecoder(BufferPool buffers, int messageSize, HashFunction hashFunction) {
+		this.buffers = buffers;
+		this.messageSize = messageSize;
+		this.hashFunction = hashFunction;
+	}
+
+	@Override
+	public synchronized Message read(ScatteringByteChannel channel) throws IOException {
+		if (frame == null) {
+			frame = buffers.acquire();
+			frame.limit(messageSize);
+		}
+		if (channel.read(frame) == -1) {
+			throw new EOFException("Client closed the connection");
+		}
+		if (frame.hasRemaining()) {
+			return null;
+		}
+		ByteBuffer complete = frame;
+		frame = null;
+		complete.flip();
+		return new Message(WireFormat.TYPE_REQUEST, 0, complete, buffers, hashFunction);
+	}
+
+	@Override
+	public boolean hasBufferedFrame() {
+		return false;	// Never reads past the message it is on
+	}
+
+	@Override
+	public synchronized void setHashFunction(HashFunction hashFunction) {
+		this.hashFunction = hashFunction;
+	}
+
+	@Override
+	public synchronized void release() {
+		if (frame != null) {
+			buffers.release(frame);
+			frame = null;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package cs455.scaling.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+
+import cs455.scaling.hash.Digest;
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.util.BufferPool;
+
+/**
+ * Decodes frames of the versioned format, see WireFormat.FRAMED for the header layout.
+ * Payloads that fit a pooled buffer are read into one, larger payloads get a buffer of their own.
+ * 
+ * Requests longer than the stream threshold are never buffered whole. They are read a pooled
+ * buffer at a time and each chunk is fed to the connection's hash as it arrives, so the message
+ * handed on carries only the finished digest.
+ * 
+ * The end of a payload is read with a scattering read that also takes the next frame's header,
+ * so a client that pipelines its requests costs one read per frame instead of two.
+ * @author Brandt Reutimann
+ */
+public class LengthPrefixedFrameDecoder implements FrameDecoder {
+	private final BufferPool buffers;
+	private final int maxPayload;
+	// Requests with a longer payload are hashed while they are read, negative disables streaming
+	private final int streamThreshold;
+	private final ByteBuffer header = ByteBuffer.allocate(WireFormat.HEADER_SIZE);
+	// The payload being read followed by the header, for scattering reads
+	private final ByteBuffer [] scatter = new ByteBuffer [2];
+	private HashFunction hashFunction;
+	// Set once the header of the current frame has been parsed
+	private boolean inFrame = false;
+	private byte type;
+	private long requestId;
+	// The hash in use when the frame started, which its response is made with
+	private HashFunction frameHash;
+	private ByteBuffer payload;
+	private boolean pooled;
+	// Only set while streaming a request
+	private Digest streamDigest;
+	private int streamRemaining;
+	
+	public LengthPrefixedFrameDecoder(BufferPool buffers, int maxPayload, int streamThreshold,
+			HashFunction hashFunction) {
+		this.buffers = buffers;
+		this.maxPayload = maxPayload;
+		this.streamThreshold = streamThreshold;
+		this.hashFunction = hashFunction;
+	}
+	
+	/**
+	 * A header read ahead in full may belong to a frame with no payload, which is then already complete
+	 */
+	@Override
+	public synchronized boolean hasBufferedFrame() {
+		return !inFrame && !header.hasRemaining();
+	}
+	
+	@Override
+	public synchronized void setHashFunction(HashFunction hashFunction) {
+		this.hashFunction = hashFunction;
+	}
+
+	@Override
+	public synchronized Message read(ScatteringByteChannel channel) throws IOException {
+		if (!inFrame) {
+			// The last read may already have brought in some or all of this header
+			if (!fill(channel, header)) {
+				return null;
+			}
+			header.flip();
+			startFrame(WireFormat.readHeader(header, maxPayload));
+			header.clear();
+		}
+		if (streamDigest != null) {
+			return readStreamed(channel);
+		}
+		if (payload.hasRemaining() && !fillAndReadAhead(channel, payload)) {
+			return null;
+		}
+		ByteBuffer complete = payload;
+		payload = null;
+		inFrame = false;
+		complete.flip();
+		return new Message(type, requestId, complete, pooled ? buffers : null, frameHash);
+	}
+	
+	private void startFrame(int length) throws ProtocolException {
+		type = header.get(WireFormat.TYPE_OFFSET);
+		if (type != WireFormat.TYPE_REQUEST && type != WireFormat.TYPE_HELLO) {
+			throw new ProtocolException("Unexpected frame type: " + type);
+		}
+		requestId = header.getLong(WireFormat.REQUEST_ID_OFFSET);
+		frameHash = hashFunction;
+		inFrame = true;
+		pooled = length <= buffers.getBufferSize();
+		if (type == WireFormat.TYPE_REQUEST && streamThreshold >= 0 && length > streamThreshold) {
+			streamDigest = frameHash.newDigest();
+			streamRemaining = length;
+			payload = buffers.acquire();
+			pooled = true;
+		} else if (pooled) {
+			payload = buffers.acquire();
+			payload.limit(length);
+		} else {
+			payload = ByteBuffer.allocate(length);
+		}
+	}
+	
+	/**
+	 * Reads the next chunks of a streamed request into the pooled buffer and hashes them
+	 * @return the request with its digest once every chunk is in, otherwise null
+	 */
+	private Message readStreamed(ScatteringByteChannel channel) throws IOException {
+		while (streamRemaining > 0) {
+			payload.clear();
+			payload.limit(Math.min(payload.capacity(), streamRemaining));
+			// Only the last chunk may run on into the next header
+			long read = payload.limit() == streamRemaining ? readAhead(channel, payload) : channel.read(payload);
+			if (read == -1) {
+				throw new EOFException("Client closed the connection");
+			}
+			if (read == 0) {
+				return null;
+			}
+			payload.flip();
+			streamRemaining -= payload.remaining();
+			streamDigest.update(payload);
+		}
+		byte [] digest = new byte [frameHash.getDigestLength()];
+		streamDigest.finish(ByteBuffer.wrap(digest));
+		buffers.release(payload);
+		payload = null;
+		streamDigest = null;
+		inFrame = false;
+		return new Message(requestId, digest, frameHash);
+	}
+	
+	/**
+	 * Reads into the rest of the payload, and whatever else is available into the empty header
+	 */
+	private long readAhead(ScatteringByteChannel channel, ByteBuffer payload) throws IOException {
+		scatter[0] = payload;
+		scatter[1] = header;
+		try {
+			return channel.read(scatter, 0, 2);
+		} finally {
+			scatter[0] = null;
+		}
+	}
+	
+	/**
+	 * Like fill, reading ahead into the header
+	 * @return true if the payload was filled
+	 */
+	private boolean fillAndReadAhead(ScatteringByteChannel channel, ByteBuffer payload) throws IOException {
+		while (payload.hasRemaining()) {
+			long read = readAhead(channel, payload);
+			if (read == -1) {
+				throw new EOFException("Client closed the connection");
+			}
+			if (read == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if the buffer was filled
+	 */
+	private static boolean fill(ScatteringByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer);
+			if (read == -1) {
+				throw new EOFException("Client closed the connection");
+			}
+			if (read == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void release() {
+		if (payload != null) {
+			if (pooled) {
+				buffers.release(payload);
+			}
+			payload = null;
+		}
+		streamDigest = null;
+		inFrame = false;
+	}
+}
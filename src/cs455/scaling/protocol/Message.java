@@ -0,0 +1,91 @@
+package cs455.scaling.protocol;
+
+import java.nio.ByteBuffer;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.util.BufferPool;
+
+/**
+ * A request read off the wire. The payload is flipped for reading, and belongs to
+ * whoever holds the message until they call release.
+ * 
+ * A streamed request was hashed while it was read, so it has no payload, only its digest.
+ * Every message keeps the hash the connection had when it was read, so a client that switches
+ * hash with a HELLO does not change the answer to a request already read.
+ * @author Brandt Reutimann
+ */
+public class Message {
+	private final byte type;
+	private final long requestId;
+	private final ByteBuffer payload;
+	// Pool the payload came from, null if it was allocated for an oversized frame
+	private final BufferPool owner;
+	private final byte [] digest;
+	private final HashFunction hashFunction;
+	
+	public Message(byte type, long requestId, ByteBuffer payload, BufferPool owner, HashFunction hashFunction) {
+		this.type = type;
+		this.requestId = requestId;
+		this.payload = payload;
+		this.owner = owner;
+		this.digest = null;
+		this.hashFunction = hashFunction;
+	}
+	
+	/**
+	 * A streamed request whose digest is already known
+	 * @param hashFunction - the hash the digest was computed with
+	 */
+	public Message(long requestId, byte [] digest, HashFunction hashFunction) {
+		this.type = WireFormat.TYPE_REQUEST;
+		this.requestId = requestId;
+		this.payload = null;
+		this.owner = null;
+		this.digest = digest;
+		this.hashFunction = hashFunction;
+	}
+	
+	/**
+	 * @return one of the WireFormat.TYPE constants
+	 */
+	public byte getType() {
+		return type;
+	}
+	
+	/**
+	 * @return the id the response must carry, always 0 for the legacy format
+	 */
+	public long getRequestId() {
+		return requestId;
+	}
+	
+	/**
+	 * @return the payload, null for a streamed request
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+	
+	/**
+	 * @return the digest of a streamed request, null otherwise
+	 */
+	public byte [] getDigest() {
+		return digest;
+	}
+	
+	/**
+	 * @return the hash the response is made with, the one the connection had when the message was read
+	 */
+	public HashFunction getHashFunction() {
+		return hashFunction;
+	}
+	
+	/**
+	 * Hands the payload back to its pool, the message must not be used afterwards
+	 */
+	public void release() {
+		if (owner != null) {
+			owner.release(payload);
+		}
+	}
+}
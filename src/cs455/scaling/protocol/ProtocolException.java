@@ -0,0 +1,16 @@
+package cs455.scaling.protocol;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a peer sends bytes that do not form a valid frame.
+ * The connection can not be resynchronized and should be closed.
+ * @author Brandt Reutimann
+ */
+public class ProtocolException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public ProtocolException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,135 @@
+package cs455.scaling.protocol;
+
+import java.nio.ByteBuffer;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.util.BufferPool;
+
+/**
+ * The formats a connection can speak.
+ * 
+ * LEGACY is the original assignment protocol: fixed 8 KB requests answered in order by bare
+ * 20 byte hashes, so only one request may be outstanding per connection.
+ * 
+ * FRAMED puts a 16 byte big endian header in front of every request and response:
+ * 		version (1) | type (1) | reserved (2) | payload length (4) | request id (8)
+ * Payloads may be any length up to the server's limit, and a client may have any number of
+ * requests in flight. Responses carry the id of their request and may arrive out of order.
+ * A client may open with a HELLO frame whose one byte payload is the id of the hash function it
+ * wants, the server answers with a HELLO carrying the id of the function it will use.
+ * An overloaded server may answer a request with an ERROR frame instead, carrying the request's
+ * id and a one byte error code.
+ * @author Brandt Reutimann
+ */
+public enum WireFormat {
+	LEGACY {
+		@Override
+		public FrameDecoder newDecoder(BufferPool buffers, int maxPayload, int streamThreshold,
+				HashFunction hashFunction) {
+			return new LegacyFrameDecoder(buffers, LEGACY_MESSAGE_SIZE, hashFunction);
+		}
+
+		@Override
+		public int headerSize() {
+			return 0;
+		}
+
+		@Override
+		public boolean isPipelined() {
+			return false;
+		}
+
+		@Override
+		public void writeHeader(ByteBuffer out, byte type, long requestId, int length) {
+			// No header in the legacy format
+		}
+	},
+	FRAMED {
+		@Override
+		public FrameDecoder newDecoder(BufferPool buffers, int maxPayload, int streamThreshold,
+				HashFunction hashFunction) {
+			return new LengthPrefixedFrameDecoder(buffers, maxPayload, streamThreshold, hashFunction);
+		}
+
+		@Override
+		public int headerSize() {
+			return HEADER_SIZE;
+		}
+
+		@Override
+		public boolean isPipelined() {
+			return true;
+		}
+
+		@Override
+		public void writeHeader(ByteBuffer out, byte type, long requestId, int length) {
+			out.put(VERSION);
+			out.put(type);
+			out.putShort((short) 0);
+			out.putInt(length);
+			out.putLong(requestId);
+		}
+	};
+	
+	public static final int KB = 1000;
+	public static final int LEGACY_MESSAGE_SIZE = 8 * KB;
+	public static final byte VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+	public static final int TYPE_OFFSET = 1;
+	public static final int LENGTH_OFFSET = 4;
+	public static final int REQUEST_ID_OFFSET = 8;
+	public static final byte TYPE_REQUEST = 1;
+	public static final byte TYPE_RESPONSE = 2;
+	public static final byte TYPE_HELLO = 3;
+	public static final byte TYPE_ERROR = 4;
+	// Error codes, the payload of an ERROR frame
+	public static final byte ERROR_OVERLOADED = 1;
+	public static final int DEFAULT_MAX_PAYLOAD = 16 * 1024 * 1024;
+	
+	/**
+	 * @param streamThreshold - longer requests are hashed as they are read, negative to always buffer
+	 * @return a decoder for requests sent by one client
+	 */
+	public abstract FrameDecoder newDecoder(BufferPool buffers, int maxPayload, int streamThreshold,
+			HashFunction hashFunction);
+	
+	/**
+	 * @return bytes in front of each payload
+	 */
+	public abstract int headerSize();
+	
+	/**
+	 * @return true if a connection may have more than one request in flight
+	 */
+	public abstract boolean isPipelined();
+	
+	/**
+	 * Puts the header for a frame of the given type and payload length at the position of out
+	 */
+	public abstract void writeHeader(ByteBuffer out, byte type, long requestId, int length);
+	
+	/**
+	 * Checks the version and length of a complete FRAMED header, flipped for reading.
+	 * The caller checks the type, at TYPE_OFFSET.
+	 * @return the payload length
+	 * @throws ProtocolException if the header is not a valid frame
+	 */
+	public static int readHeader(ByteBuffer header, int maxPayload) throws ProtocolException {
+		byte version = header.get(0);
+		if (version != VERSION) {
+			throw new ProtocolException("Unsupported protocol version: " + version);
+		}
+		int length = header.getInt(LENGTH_OFFSET);
+		if (length < 0 || length > maxPayload) {
+			throw new ProtocolException("Frame length out of range: " + length);
+		}
+		return length;
+	}
+	
+	/**
+	 * @throws IllegalArgumentException for an unknown name
+	 */
+	public static WireFormat fromName(String name) {
+		return valueOf(name.toUpperCase());
+	}
+}
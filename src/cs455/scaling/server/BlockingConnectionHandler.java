@@ -0,0 +1,53 @@
+package cs455.scaling.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import cs455.scaling.protocol.Message;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.tasks.ReadMessageAndRespond;
+import cs455.scaling.util.LatencyHistogram;
+
+/**
+ * Serves one connection with blocking reads and writes, meant to run on its own virtual thread.
+ * Messages are hashed inline, so a connection never has more than one request in progress
+ * and reading naturally waits for the previous response.
+ * @author Brandt Reutimann
+ */
+public class BlockingConnectionHandler implements Runnable {
+	private final ClientConnection client;
+	// There is no queue here, only the time to hash and write back each message is recorded
+	private final LatencyHistogram serviceTime;
+	
+	public BlockingConnectionHandler(ClientConnection client, LatencyHistogram serviceTime) {
+		this.client = client;
+		this.serviceTime = serviceTime;
+	}
+
+	@Override
+	public void run() {
+		try {
+			// The decoders keep reading until a frame is complete, on a blocking socket that parks the thread
+			while (!client.isDead()) {
+				Message message = client.readMessage();
+				if (message == null) {
+					continue;
+				}
+				if (message.getType() == WireFormat.TYPE_HELLO) {
+					client.negotiateHash(message);
+				} else {
+					client.messageDispatched();
+					long startedAt = System.nanoTime();
+					ReadMessageAndRespond.hashAndRespond(client, message);
+					serviceTime.record(System.nanoTime() - startedAt);
+				}
+			}
+		} catch (EOFException e) {
+			// Client hung up
+		} catch (IOException e) {
+			System.err.println("Dropping client: " + client.getClientIP() + " " + e.getMessage());
+		} finally {
+			client.close();
+		}
+	}
+}
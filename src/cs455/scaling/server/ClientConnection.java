@@ -1,26 +1,134 @@
 package cs455.scaling.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+import cs455.scaling.protocol.FrameDecoder;
+import cs455.scaling.protocol.Message;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.util.BufferPool;
+import cs455.scaling.util.ResponseCache;
+import cs455.scaling.util.TokenBucket;
 
 /**
  * Holds data pertinent for the server to know about a connected client.
  * Also handles statistical information for the client
+ * 
+ * The connection also carries the framing state. The reactor accumulates a message across
+ * as many reads as it takes, and only hands it to the pool once it is complete. Responses
+ * are queued on the connection, and whatever the socket does not take right away is written
+ * by the reactor once the socket is writable.
  * @author brandt
  */
 public class ClientConnection {
 	private static final AtomicInteger idCount = new AtomicInteger(0);
+	// Most responses written by one system call, well under the kernel's IOV_MAX
+	private static final int MAX_GATHER = 64;
 	private final int myID;
 	private final SocketChannel socket;
 	private final AtomicBoolean isReading;
 	private final AtomicBoolean isDead;
 	private String clientIP;
-	private final AtomicInteger throughput = new AtomicInteger(0);
+	private final LongAdder throughput = new LongAdder();
+	// The selector loop that owns this connection
+	private Reactor reactor;
+	private SelectionKey key;
+	private final WireFormat format;
+	private final FrameDecoder decoder;
+	// Server default until the client negotiates another with a HELLO
+	private volatile HashFunction hashFunction;
+	private final BufferPool responseBuffers;
+	// Digests of payloads seen before, shared by every connection, null when caching is off
+	private final ResponseCache responseCache;
+	// Requests handed to the pool whose response has not been fully written
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private final int maxInFlight;
+	private final AtomicBoolean readPaused = new AtomicBoolean(false);
+	// Set by the reactor while the pool has no room for this client's next request
+	private volatile boolean overloadPaused = false;
+	// Set once the server is shutting down, the connection is then only written to
+	private volatile boolean draining = false;
+	// Responses waiting for the socket, guarded by itself
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	// Queued responses handed to one gathering write, guarded by outbound
+	private final ByteBuffer [] gather = new ByteBuffer [MAX_GATHER];
+	private volatile boolean writePending = false;
+	private final ServerMetrics metrics;
+	private volatile ConnectionRegistry registry;
+	// Share of the workers under fair scheduling, relative to other connections
+	private volatile int schedulingWeight = 1;
+	// Quota of messages and bytes read, null when the client has no limit. Only touched by the owning reactor.
+	private TokenBucket messageQuota;
+	private TokenBucket byteQuota;
+	// Bytes read in all, and those already taken from the byte quota
+	private long bytesRead = 0;
+	private long bytesCharged = 0;
+	// Set by the reactor while the client is over its quota
+	private volatile boolean throttled = false;
+	// Last time bytes moved in either direction, for idle reaping
+	private volatile long lastActivity = System.nanoTime();
+	// The socket as the decoder sees it, counting the bytes read
+	private final ScatteringByteChannel countingSocket = new ScatteringByteChannel() {
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int read = socket.read(dst);
+			if (read > 0) {
+				bytesRead += read;
+				metrics.bytesIn.add(read);
+				lastActivity = System.nanoTime();
+			}
+			return read;
+		}
+		
+		@Override
+		public long read(ByteBuffer [] dsts, int offset, int length) throws IOException {
+			long read = socket.read(dsts, offset, length);
+			if (read > 0) {
+				bytesRead += read;
+				metrics.bytesIn.add(read);
+				lastActivity = System.nanoTime();
+			}
+			return read;
+		}
+		
+		@Override
+		public long read(ByteBuffer [] dsts) throws IOException {
+			return read(dsts, 0, dsts.length);
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return socket.isOpen();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	};
 	// Stat variables
-	public ClientConnection(SocketChannel socket) {
+	public ClientConnection(SocketChannel socket, WireFormat format, FrameDecoder decoder,
+			BufferPool responseBuffers, HashFunction hashFunction, ResponseCache responseCache, int maxInFlight,
+			ServerMetrics metrics) {
 		this.socket = socket;
+		this.responseCache = responseCache;
+		this.metrics = metrics;
+		this.format = format;
+		this.decoder = decoder;
+		this.hashFunction = hashFunction;
+		this.responseBuffers = responseBuffers;
+		// Legacy responses carry no id, so they must go out in order one at a time
+		this.maxInFlight = format.isPipelined() ? maxInFlight : 1;
 		this.isReading = new AtomicBoolean(false);
 		this.isDead = new AtomicBoolean(false);
 		this.myID = idCount.getAndIncrement(); // id++
@@ -36,6 +144,9 @@ public class ClientConnection {
 		return socket;
 	}
 	
+	/**
+	 * @return true while the client has requests in flight
+	 */
 	public boolean isReading() {
 		return isReading.get();
 	}
@@ -45,36 +156,442 @@ public class ClientConnection {
 	}
 	
 	public void setIsDead(boolean a) {
-		isDead.set(a);
+		boolean wasDead = isDead.getAndSet(a);
+		if (a && !wasDead) {
+			metrics.dropped.increment();
+			if (registry != null) {
+				registry.remove(this);
+			}
+			if (reactor != null) {
+				reactor.connectionClosed();
+			}
+		}
 	}
 	
 	public void setIsReading(boolean a) {
 		isReading.set(a);
 	}
 	
+	void setRegistry(ConnectionRegistry registry) {
+		this.registry = registry;
+	}
+	
+	void setReactor(Reactor reactor) {
+		this.reactor = reactor;
+	}
+	
+	public Reactor getReactor() {
+		return reactor;
+	}
+	
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+	
+	public SelectionKey getKey() {
+		return key;
+	}
+	
+	public WireFormat getFormat() {
+		return format;
+	}
+	
+	public HashFunction getHashFunction() {
+		return hashFunction;
+	}
+	
+	/**
+	 * @return the cache to hash this client's messages through, null when caching is off
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	/**
+	 * Switches to the hash the client asked for in a HELLO, or keeps the current one if the
+	 * server does not know it, and answers with the id of the hash in use. The handshake counts
+	 * as one request. Only called by the owning reactor, so later messages are read with the new hash,
+	 * while requests already read keep the hash on their Message.
+	 * @return true if the reactor should keep reading this client
+	 */
+	boolean negotiateHash(Message hello) throws IOException {
+		ByteBuffer payload = hello.getPayload();
+		if (payload.remaining() == 1) {
+			HashFunction requested = HashFunctions.forId(payload.get());
+			if (requested != null) {
+				hashFunction = requested;
+				decoder.setHashFunction(requested);
+			}
+		}
+		long requestId = hello.getRequestId();
+		hello.release();
+		boolean keepReading = messageDispatched();
+		ByteBuffer reply = responseBuffers.acquire();
+		format.writeHeader(reply, WireFormat.TYPE_HELLO, requestId, 1);
+		reply.put(hashFunction.getId());
+		reply.flip();
+		sendResponse(reply);
+		return keepReading;
+	}
+	
+	/**
+	 * A connection is idle when nothing moved for the timeout and it is either waiting on the
+	 * client or stuck behind a socket that stopped taking writes, which is how half-open
+	 * connections look from here.
+	 * @return nanoseconds until the connection could be idle, 0 if it is idle now
+	 */
+	long idleCheck(long now, long timeoutNanos) {
+		long remaining = lastActivity + timeoutNanos - now;
+		if (remaining > 0) {
+			return remaining;
+		}
+		if (inFlight.get() > 0 && !writePending) {
+			return timeoutNanos;	// Still being worked on, look again later
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return the interest ops the key should have given the read and write state
+	 */
+	int currentInterest() {
+		int ops = 0;
+		if (!readPaused.get() && !overloadPaused && !throttled && !draining) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (writePending) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
+	}
+	
+	/**
+	 * Reads whatever the socket has without blocking. Only called by the owning reactor.
+	 * @return the next complete message, or null if more bytes are needed
+	 * @throws java.io.EOFException if the client closed the connection
+	 */
+	Message readMessage() throws IOException {
+		return decoder.read(countingSocket);
+	}
+	
+	/**
+	 * @return true if readMessage may return a message without the socket becoming readable
+	 */
+	boolean hasBufferedFrame() {
+		return decoder.hasBufferedFrame();
+	}
+	
+	/**
+	 * Counts a message handed to the pool, and pauses reading once the client has as many
+	 * requests in flight as it is allowed. Only called by the owning reactor.
+	 * @return true if the reactor should keep reading this client
+	 */
+	boolean messageDispatched() {
+		isReading.set(true);
+		if (inFlight.incrementAndGet() < maxInFlight) {
+			return true;
+		}
+		readPaused.set(true);
+		// A response may have completed before the flag was set, in that case undo the pause
+		if (inFlight.get() < maxInFlight && readPaused.compareAndSet(true, false)) {
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Stops reading this client until resumeAfterOverload. Only called by the owning reactor,
+	 * which applies the interest change itself.
+	 */
+	void pauseForOverload() {
+		overloadPaused = true;
+	}
+	
+	void resumeAfterOverload() {
+		overloadPaused = false;
+	}
+	
+	boolean isOverloadPaused() {
+		return overloadPaused;
+	}
+	
+	/**
+	 * Limits the rate the client is read at. Must be called before the connection is assigned to a reactor.
+	 * @param messageQuota - one token per message, null for no limit
+	 * @param byteQuota - one token per byte, null for no limit
+	 */
+	void setQuota(TokenBucket messageQuota, TokenBucket byteQuota) {
+		this.messageQuota = messageQuota;
+		this.byteQuota = byteQuota;
+	}
+	
+	boolean hasQuota() {
+		return messageQuota != null || byteQuota != null;
+	}
+	
+	/**
+	 * Takes the messages given, and every byte read since the last charge, from the client's
+	 * quota. Only called by the owning reactor.
+	 * @return nanoseconds until the client is back within its quota, 0 if it still is
+	 */
+	long chargeQuota(int messages, long now) {
+		long wait = 0;
+		if (messageQuota != null && messages > 0) {
+			wait = messageQuota.take(messages, now);
+		}
+		if (byteQuota != null && bytesRead > bytesCharged) {
+			wait = Math.max(wait, byteQuota.take(bytesRead - bytesCharged, now));
+		}
+		bytesCharged = bytesRead;
+		return wait;
+	}
+	
+	/**
+	 * Stops reading this client until unthrottle. Only called by the owning reactor,
+	 * which applies the interest change itself.
+	 */
+	void throttle() {
+		throttled = true;
+	}
+	
+	void unthrottle() {
+		throttled = false;
+	}
+	
+	boolean isThrottled() {
+		return throttled;
+	}
+	
+	/**
+	 * Stops reading this client for good, so the requests already read can be answered
+	 * before the connection is closed. Only called by the owning reactor.
+	 */
+	void stopReading() {
+		draining = true;
+	}
+	
+	/**
+	 * @return true if every request read has been answered and written out
+	 */
+	boolean isQuiescent() {
+		return inFlight.get() == 0 && !writePending;
+	}
+	
+	/**
+	 * Drops a dispatched request the server has no room for. A framed client is told with an
+	 * ERROR frame. A legacy client can not be told, and would wait forever for the response, so
+	 * it is disconnected instead.
+	 */
+	public void reject(Message message) {
+		message.release();
+		metrics.rejected.increment();
+		if (isDead()) {
+			return;
+		}
+		if (!format.isPipelined()) {
+			close();
+			return;
+		}
+		ByteBuffer error = responseBuffers.acquire();
+		format.writeHeader(error, WireFormat.TYPE_ERROR, message.getRequestId(), 1);
+		error.put(WireFormat.ERROR_OVERLOADED);
+		error.flip();
+		try {
+			sendResponse(error);
+		} catch (IOException e) {
+			System.err.println("Dropping client: " + clientIP + " (" + e.getMessage() + ")");
+			close();
+		}
+	}
+	
+	/**
+	 * @return a cleared buffer for a response, hand it to sendResponse once it is filled
+	 */
+	public ByteBuffer acquireResponseBuffer() {
+		return responseBuffers.acquire();
+	}
+	
+	/**
+	 * Queues a flipped response and writes as much of the queue as the socket takes.
+	 * If anything is left over the reactor is asked to finish once the socket is writable.
+	 */
+	public void sendResponse(ByteBuffer response) throws IOException {
+		queueResponse(response);
+		flush();
+	}
+	
+	/**
+	 * Queues a flipped response without writing it, so several responses can go out in one
+	 * write. The caller must flush afterwards.
+	 */
+	public void queueResponse(ByteBuffer response) {
+		synchronized (outbound) {
+			if (isDead()) {
+				responseBuffers.release(response);
+				return;
+			}
+			outbound.addLast(response);
+		}
+	}
+	
+	/**
+	 * Writes every queued response the socket takes, in as few system calls as it can
+	 */
+	public void flush() throws IOException {
+		boolean needWritable = false;
+		int completed;
+		synchronized (outbound) {
+			if (writePending || outbound.isEmpty() || isDead()) {
+				return;		// The reactor is already waiting to flush this queue, or there is nothing to do
+			}
+			completed = flushOutbound();
+			if (!outbound.isEmpty()) {
+				writePending = true;
+				needWritable = true;
+			}
+		}
+		boolean resume = responsesCompleted(completed);
+		// A connection served by its own blocking thread has no reactor, and never has anything left over
+		if ((needWritable || resume) && reactor != null) {
+			reactor.requestInterestUpdate(this);
+		}
+	}
+	
+	/**
+	 * Writes queued responses once the socket is writable. Only called by the owning reactor.
+	 * @return true if the interest must be updated, because the queue was drained or reading may resume
+	 */
+	boolean flushPending() throws IOException {
+		int completed;
+		boolean drained;
+		synchronized (outbound) {
+			completed = flushOutbound();
+			drained = outbound.isEmpty();
+			if (drained) {
+				writePending = false;
+			}
+		}
+		boolean resume = responsesCompleted(completed);
+		return drained || resume;
+	}
+	
+	/**
+	 * Writes the queue with gathering writes of up to MAX_GATHER responses each, until it is
+	 * empty or the socket stops taking everything it is offered. Must hold the outbound lock.
+	 * @return number of responses fully written
+	 */
+	private int flushOutbound() throws IOException {
+		int completed = 0;
+		while (!outbound.isEmpty()) {
+			int count = 0;
+			long offered = 0;
+			for (ByteBuffer response : outbound) {
+				gather[count++] = response;
+				offered += response.remaining();
+				if (count == MAX_GATHER) {
+					break;
+				}
+			}
+			long written;
+			try {
+				written = socket.write(gather, 0, count);
+			} finally {
+				Arrays.fill(gather, 0, count, null);
+			}
+			if (written > 0) {
+				metrics.bytesOut.add(written);
+				lastActivity = System.nanoTime();
+			}
+			ByteBuffer head;
+			while ((head = outbound.peekFirst()) != null && !head.hasRemaining()) {
+				outbound.pollFirst();
+				responseBuffers.release(head);
+				completed++;
+			}
+			if (written < offered) {
+				break;
+			}
+		}
+		return completed;
+	}
+	
+	/**
+	 * @return true if reading was paused and may now resume
+	 */
+	private boolean responsesCompleted(int completed) {
+		if (completed == 0) {
+			return false;
+		}
+		throughput.add(completed);
+		metrics.messages.add(completed);
+		int remaining = inFlight.addAndGet(-completed);
+		if (remaining == 0) {
+			isReading.set(false);
+		}
+		return remaining < maxInFlight && readPaused.compareAndSet(true, false);
+	}
+	
+	/**
+	 * Marks the client as dead, and releases its socket and any buffers it holds
+	 */
+	public void close() {
+		setIsDead(true);
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close client socket: " + e.getMessage());
+		}
+		decoder.release();
+		synchronized (outbound) {
+			ByteBuffer pending;
+			while ((pending = outbound.pollFirst()) != null) {
+				responseBuffers.release(pending);
+			}
+		}
+	}
+	
 	public String getClientIP() {
 		return clientIP;
 	}
 	
+	public int getSchedulingWeight() {
+		return schedulingWeight;
+	}
+	
+	void setSchedulingWeight(int weight) {
+		this.schedulingWeight = weight;
+	}
+	
 	public int getID() {
 		return myID;
 	}
 	
-	public int incrementThroughput() {
-		return throughput.getAndIncrement();
+	public void incrementThroughput() {
+		throughput.increment();
 	}
 	
-	public int getAndResetThroughput() {
-		return throughput.getAndSet(0);
+	/**
+	 * Not atomic with respect to concurrent increments, a response that lands during the reset
+	 * may be counted in either interval
+	 */
+	public long getAndResetThroughput() {
+		return throughput.sumThenReset();
 	}
 	
 	@Override
 	public boolean equals(Object other) {
-		if (other.getClass() != this.getClass()) {
+		if (other == null || other.getClass() != this.getClass()) {
 			return false;
 		}
 		ClientConnection otherConn = (ClientConnection) other;
 		return this.getID() == otherConn.getID();
 	}
 	
+	@Override
+	public int hashCode() {
+		return myID;
+	}
 }
@@ -0,0 +1,45 @@
+package cs455.scaling.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every live connection of the server, keyed by connection id.
+ * Adding and removing are O(1) and never block each other, and a connection removes itself
+ * the moment it dies, so nothing dead lingers until the next statistics pass.
+ * @author Brandt Reutimann
+ */
+public class ConnectionRegistry {
+	private final ConcurrentHashMap<Integer, ClientConnection> connections = new ConcurrentHashMap<Integer, ClientConnection>();
+	
+	public void add (ClientConnection client) {
+		client.setRegistry(this);
+		connections.put(client.getID(), client);
+		// The client may have died before it could see the registry
+		if (client.isDead()) {
+			remove(client);
+		}
+	}
+	
+	/**
+	 * Called by a connection when it dies
+	 */
+	void remove (ClientConnection client) {
+		connections.remove(client.getID(), client);
+	}
+	
+	public ClientConnection get (int id) {
+		return connections.get(id);
+	}
+	
+	public int size () {
+		return connections.size();
+	}
+	
+	/**
+	 * @return a live view, iterating it is weakly consistent and takes no lock
+	 */
+	public Collection<ClientConnection> getConnections () {
+		return connections.values();
+	}
+}
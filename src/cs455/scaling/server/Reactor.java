@@ -0,0 +1,550 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs455.scaling.concurrent.TaskExecutor;
+import cs455.scaling.protocol.Message;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.tasks.ReadMessageAndRespond;
+import cs455.scaling.tasks.ReadMessageBatch;
+import cs455.scaling.tasks.Task;
+import cs455.scaling.util.HashedTimerWheel;
+
+/**
+ * A selector loop that owns a set of client connections and turns their readable keys
+ * into tasks for the thread pool. A reactor may also listen on the server socket, in which
+ * case accepted connections are handed back to the server to be placed on a reactor.
+ * 
+ * All reads happen on the reactor thread. A message is only handed to the pool once it has
+ * fully arrived, and a client is not read while it has as many requests in flight as its
+ * format allows. Workers ask for interest changes through a queue, which the reactor applies
+ * on its own thread.
+ * 
+ * When the pool's queue is full the overload policy decides what happens to a new task. It
+ * may wait for room, which stalls every client of this reactor. It may be parked here while
+ * the clients it came from stop being read, until the pool catches up. Or it, or the oldest
+ * task in the queue, may be rejected with an error to its client.
+ * 
+ * A client with a quota is charged for every message and byte read. Once it runs out, its key
+ * stops asking for reads, and a timer on the reactor's wheel asks again once the client is back
+ * within its quota, so throttling costs the workers nothing.
+ * 
+ * When the server shuts down the reactor drains: it stops reading, answers the requests it
+ * has already read, and closes each connection once its last response is written.
+ * @author Brandt Reutimann
+ */
+public class Reactor implements Runnable {
+	// Messages read from one client per wakeup, so a pipelining client can not hog the loop
+	private static final int MAX_MESSAGES_PER_READ = 16;
+	// Idle checks only need to be roughly on time
+	private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int TIMER_WHEEL_SIZE = 512;
+	// How often tasks stalled by a full queue are offered again
+	private static final long STALL_RETRY_MILLIS = 1;
+	// How often a draining reactor looks for connections it can close
+	private static final long DRAIN_CHECK_MILLIS = 10;
+	private final Server server;
+	private final ServerConfig config;
+	private final TaskExecutor threadpool;
+	private final ServerMetrics metrics;
+	private final Selector selector;
+	private final String name;
+	// Connections accepted by another thread, waiting to be registered with this selector
+	private final Queue<ClientConnection> pendingRegistrations = new ConcurrentLinkedQueue<ClientConnection>();
+	// Connections whose interest ops were changed by a worker
+	private final Queue<ClientConnection> pendingInterest = new ConcurrentLinkedQueue<ClientConnection>();
+	private final AtomicInteger connectionCount = new AtomicInteger(0);
+	// Batch being filled by this selector thread, null when nothing is pending
+	private ReadMessageBatch pendingBatch;
+	// Timers of this reactor's connections, only touched on the reactor thread
+	private final HashedTimerWheel timer = new HashedTimerWheel(TIMER_TICK_NANOS, TIMER_WHEEL_SIZE);
+	private final long idleTimeoutNanos;
+	private final ServerConfig.OverloadPolicy overloadPolicy;
+	// Pause policy, tasks the pool had no room for in the order they were read, and the
+	// clients that stopped being read because of them
+	private final ArrayDeque<Task> stalledTasks = new ArrayDeque<Task>();
+	private final List<ClientConnection> overloadPaused = new ArrayList<ClientConnection>();
+	// Clients whose decoder holds bytes already read, which the selector will not report again
+	private final ArrayDeque<ClientConnection> readAgain = new ArrayDeque<ClientConnection>();
+	private volatile boolean draining = false;
+	private volatile boolean stopped = false;
+	
+	public Reactor (Server server, String name) throws IOException {
+		this.server = server;
+		this.config = server.getConfig();
+		this.threadpool = server.getThreadPool();
+		this.metrics = server.getMetrics();
+		this.name = name;
+		this.selector = Selector.open();
+		this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getIdleTimeoutSeconds());
+		this.overloadPolicy = config.getOverloadPolicy();
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Must be called before the reactor is started
+	 */
+	public void listen (ServerSocketChannel serversocket) throws ClosedChannelException {
+		serversocket.register(selector, SelectionKey.OP_ACCEPT);
+	}
+	
+	/**
+	 * Gives this reactor ownership of a connection. Safe to call from any thread.
+	 */
+	public void assign (ClientConnection client) {
+		connectionCount.incrementAndGet();
+		client.setReactor(this);
+		pendingRegistrations.add(client);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Stops reading new requests, and closes each connection once everything it sent has been
+	 * answered. Safe to call from any thread.
+	 */
+	public void startDraining () {
+		draining = true;
+		selector.wakeup();
+	}
+	
+	/**
+	 * Ends the loop, closing whatever connections are still open. Safe to call from any thread.
+	 */
+	public void stop () {
+		stopped = true;
+		selector.wakeup();
+	}
+	
+	/**
+	 * Called once by a connection of this reactor when it dies
+	 */
+	void connectionClosed () {
+		connectionCount.decrementAndGet();
+	}
+	
+	/**
+	 * @return number of live connections owned by this reactor
+	 */
+	public int getConnectionCount () {
+		return connectionCount.get();
+	}
+	
+	private void registerPendingConnections () {
+		ClientConnection client;
+		while ((client = pendingRegistrations.poll()) != null) {
+			try {
+				client.setKey(client.getSocket().register(selector, SelectionKey.OP_READ, client));
+				if (idleTimeoutNanos > 0) {
+					scheduleIdleCheck(client, idleTimeoutNanos);
+				}
+			} catch (ClosedChannelException e) {
+				System.err.println("Unable to register new client");
+				client.close();
+			}
+		}
+	}
+	
+	/**
+	 * Each connection has a single pending idle check. Traffic only updates a timestamp, and
+	 * the check puts itself back for when the connection could next be idle, so the cost is
+	 * one timer per connection per timeout no matter how busy the connection is.
+	 */
+	private void scheduleIdleCheck (final ClientConnection client, long delayNanos) {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (client.isDead()) {
+					return;
+				}
+				long remaining = client.idleCheck(System.nanoTime(), idleTimeoutNanos);
+				if (remaining > 0) {
+					scheduleIdleCheck(client, remaining);
+				} else {
+					System.err.println("Closing idle client: " + client.getClientIP());
+					client.close();
+				}
+			}
+		}, delayNanos);
+	}
+	
+	/**
+	 * Called by a worker whose responses changed the read or write state of a client.
+	 * The reactor applies the client's current interest ops on its own thread.
+	 */
+	public void requestInterestUpdate (ClientConnection client) {
+		pendingInterest.add(client);
+		selector.wakeup();
+	}
+	
+	private void applyPendingInterest () {
+		ClientConnection client;
+		while ((client = pendingInterest.poll()) != null) {
+			SelectionKey key = client.getKey();
+			if (!client.isDead() && key.isValid()) {
+				key.interestOps(client.currentInterest());
+				readAgainIfBuffered(client);
+			}
+		}
+	}
+	
+	/**
+	 * Schedules another read of a client that may read again and has a frame in its decoder
+	 */
+	private void readAgainIfBuffered (ClientConnection client) {
+		if ((client.currentInterest() & SelectionKey.OP_READ) != 0 && client.hasBufferedFrame()) {
+			readAgain.add(client);
+		}
+	}
+	
+	private void readBufferedClients () {
+		for (int i = readAgain.size(); i > 0; i--) {
+			ClientConnection client = readAgain.poll();
+			SelectionKey key = client.getKey();
+			// The client may have been paused or throttled since it was queued
+			if (!client.isDead() && key.isValid() && (client.currentInterest() & SelectionKey.OP_READ) != 0) {
+				readFromClient(key);
+			}
+		}
+	}
+	
+	/**
+	 * Reads what the client has sent so far, and dispatches each message once it is complete.
+	 * Stops early once the client has as many requests in flight as it may have, or the pool
+	 * has no room for its requests.
+	 */
+	private void readFromClient (SelectionKey key) {
+		ClientConnection client = (ClientConnection) key.attachment();
+		try {
+			Message message;
+			int dispatched = 0;
+			while (dispatched < MAX_MESSAGES_PER_READ && (message = client.readMessage()) != null) {
+				dispatched++;
+				boolean keepReading;
+				if (message.getType() == WireFormat.TYPE_HELLO) {
+					keepReading = client.negotiateHash(message);
+				} else {
+					keepReading = client.messageDispatched();
+					respondToClient(client, message);
+				}
+				// Charged for every message, whatever else stops the reading
+				boolean throttled = overQuota(client, 1);
+				if (!keepReading || client.isOverloadPaused() || throttled) {
+					key.interestOps(client.currentInterest());
+					break;
+				}
+			}
+			// Bytes of a message not yet complete count against the quota as well
+			if (!client.isThrottled() && overQuota(client, 0)) {
+				key.interestOps(client.currentInterest());
+			}
+			if (!draining) {
+				readAgainIfBuffered(client);
+			}
+		} catch (IOException e) {
+			System.err.println("Dropping client: " + client.getClientIP() + " (" + e.getMessage() + ")");
+			client.close();
+		}
+	}
+	
+	/**
+	 * Charges the client for what was read, and throttles it if that takes it over its quota.
+	 * The caller applies the interest change.
+	 * @param messages - messages read since the last charge
+	 * @return true if the client must stop being read
+	 */
+	private boolean overQuota (final ClientConnection client, int messages) {
+		if (!client.hasQuota()) {
+			return false;
+		}
+		long wait = client.chargeQuota(messages, System.nanoTime());
+		if (wait == 0) {
+			return false;
+		}
+		client.throttle();
+		metrics.throttled.increment();
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				client.unthrottle();
+				SelectionKey key = client.getKey();
+				if (!client.isDead() && key.isValid()) {
+					key.interestOps(client.currentInterest());
+					readAgainIfBuffered(client);
+				}
+			}
+		}, wait);
+		return true;
+	}
+	
+	/**
+	 * Writes the responses a worker could not finish
+	 */
+	private void writeToClient (SelectionKey key) {
+		ClientConnection client = (ClientConnection) key.attachment();
+		try {
+			if (client.flushPending()) {
+				key.interestOps(client.currentInterest());
+				// A frame already in the decoder would wait for a readable event that never comes
+				if (!draining) {
+					readAgainIfBuffered(client);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Dropping client: " + client.getClientIP() + " (" + e.getMessage() + ")");
+			client.close();
+		}
+	}
+	
+	/**
+	 * Creates a task for hashing the msg, and responding to the client.
+	 * In batching mode the message joins the pending batch instead.
+	 * @param client - the client the message came from
+	 */
+	private void respondToClient (ClientConnection client, Message message) {
+		if (!config.isBatching()) {
+			dispatch(new ReadMessageAndRespond(client, message));
+			return;
+		}
+		if (pendingBatch == null) {
+			pendingBatch = new ReadMessageBatch(config.getBatchSize());
+		}
+		if (pendingBatch.add(client, message)) {
+			flushBatch();
+		}
+	}
+	
+	/**
+	 * Hands the pending batch to the thread pool
+	 */
+	private void flushBatch () {
+		if (pendingBatch != null) {
+			dispatch(pendingBatch);
+			pendingBatch = null;
+		}
+	}
+	
+	/**
+	 * Hands a task to the pool, applying the overload policy if the pool is full
+	 */
+	private void dispatch (Task task) {
+		switch (overloadPolicy) {
+		case BLOCK:
+			threadpool.offerTask(task);
+			break;
+		case PAUSE:
+			// Once anything is stalled new tasks queue behind it, to keep each client's requests in order
+			if (!stalledTasks.isEmpty() || !threadpool.tryOfferTask(task)) {
+				stall(task);
+			}
+			break;
+		case REJECT:
+			if (!threadpool.tryOfferTask(task)) {
+				task.reject();
+			}
+			break;
+		case SHED_OLDEST:
+			while (!threadpool.tryOfferTask(task)) {
+				Task oldest = threadpool.shedOldestTask();
+				if (oldest == null) {
+					task.reject();
+					return;
+				}
+				metrics.shed.increment();
+				oldest.reject();
+			}
+			break;
+		}
+	}
+	
+	private void stall (Task task) {
+		stalledTasks.addLast(task);
+		if (task instanceof ReadMessageBatch) {
+			ReadMessageBatch batch = (ReadMessageBatch) task;
+			for (int i = 0; i < batch.size(); i++) {
+				pauseForOverload(batch.getClient(i));
+			}
+		} else {
+			pauseForOverload(((ReadMessageAndRespond) task).getClient());
+		}
+	}
+	
+	private void pauseForOverload (ClientConnection client) {
+		if (client.isOverloadPaused()) {
+			return;
+		}
+		client.pauseForOverload();
+		overloadPaused.add(client);
+		metrics.overloadPauses.increment();
+		SelectionKey key = client.getKey();
+		if (key != null && key.isValid()) {
+			key.interestOps(client.currentInterest());
+		}
+	}
+	
+	/**
+	 * Offers stalled tasks to the pool again, and once they are all taken reads the paused clients again
+	 */
+	private void retryStalledTasks () {
+		Task task;
+		while ((task = stalledTasks.peekFirst()) != null) {
+			if (!threadpool.tryOfferTask(task)) {
+				return;
+			}
+			stalledTasks.pollFirst();
+		}
+		for (ClientConnection client : overloadPaused) {
+			client.resumeAfterOverload();
+			SelectionKey key = client.getKey();
+			if (!client.isDead() && key.isValid()) {
+				key.interestOps(client.currentInterest());
+				readAgainIfBuffered(client);
+			}
+		}
+		overloadPaused.clear();
+	}
+	
+	/**
+	 * Stops reading every connection, and closes those with nothing left to answer
+	 */
+	private void drainConnections () {
+		flushBatch();
+		readAgain.clear();
+		for (SelectionKey key : selector.keys()) {
+			if (!(key.attachment() instanceof ClientConnection)) {
+				continue;
+			}
+			ClientConnection client = (ClientConnection) key.attachment();
+			client.stopReading();
+			if (client.isQuiescent()) {
+				client.close();
+			} else if (key.isValid()) {
+				key.interestOps(client.currentInterest());
+			}
+		}
+	}
+	
+	private void closeConnections () {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof ClientConnection) {
+				((ClientConnection) key.attachment()).close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.err.println(name + " failed to close its selector: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return milliseconds until the pending batch must be flushed, 0 if it is due now
+	 */
+	private long batchTimeRemaining () {
+		long age = System.currentTimeMillis() - pendingBatch.getCreatedAt();
+		return Math.max(0, config.getBatchDelayMillis() - age);
+	}
+	
+	/**
+	 * Blocks for ready keys, but no longer than the pending batch is allowed to wait,
+	 * or than the next tick of the timer wheel, or than stalled tasks wait to be offered again.
+	 */
+	private void select () throws IOException {
+		long remaining = -1;
+		if (pendingBatch != null) {
+			remaining = batchTimeRemaining();
+		}
+		if (!stalledTasks.isEmpty()) {
+			remaining = remaining < 0 ? STALL_RETRY_MILLIS : Math.min(remaining, STALL_RETRY_MILLIS);
+		}
+		if (draining) {
+			remaining = remaining < 0 ? DRAIN_CHECK_MILLIS : Math.min(remaining, DRAIN_CHECK_MILLIS);
+		}
+		if (!readAgain.isEmpty()) {
+			remaining = 0;
+		}
+		if (!timer.isEmpty()) {
+			long tick = (timer.nanosUntilNextTick(System.nanoTime()) + 999999) / 1000000;
+			remaining = remaining < 0 ? tick : Math.min(remaining, tick);
+		}
+		if (remaining < 0) {
+			selector.select();
+		} else if (remaining == 0) {
+			selector.selectNow();
+		} else {
+			selector.select(remaining);
+		}
+	}
+	
+	@Override
+	public void run() {
+		while (!stopped) {
+			Set<SelectionKey> selectedKeys = null;
+			Iterator<SelectionKey> iter = null;
+			SelectionKey key = null;
+			try {
+				select();
+				metrics.wakeups.increment();
+				registerPendingConnections();
+				applyPendingInterest();
+				if (!stalledTasks.isEmpty()) {
+					retryStalledTasks();
+				}
+				selectedKeys = selector.selectedKeys();
+	            iter = selectedKeys.iterator();
+	            while (iter.hasNext()) {
+	            	key = iter.next();
+	            	iter.remove();
+	            	if (!key.isValid()) {
+	            		continue;
+	            	}
+	                if (key.isAcceptable()) {
+	                    server.registerNewConnection(this, (ServerSocketChannel) key.channel());
+	                    continue;
+	                }
+	                if (key.isReadable() && !draining) {
+	                	readFromClient(key);
+	                }
+	                // A key can be ready for both, but the read may have closed the connection
+	                if (key.isValid() && key.isWritable()) {
+	                	writeToClient(key);
+	                }
+	            }
+	            if (!readAgain.isEmpty() && !draining) {
+	            	readBufferedClients();
+	            }
+	            // Dispatch a partial batch once it has waited long enough
+	            if (pendingBatch != null && batchTimeRemaining() == 0) {
+	            	flushBatch();
+	            }
+	            timer.advance(System.nanoTime());
+	            if (draining) {
+	            	drainConnections();
+	            }
+			} catch (CancelledKeyException e) {
+				System.err.println("Selected key was cancelled due to IOException");
+				continue;
+			} catch (IOException e) {
+				System.err.println(name + " select operation failed: " + e.getMessage());
+				break;
+			}
+		}
+		closeConnections();
+	}
+}
@@ -1,156 +1,524 @@
 package cs455.scaling.server;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.CancelledKeyException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import cs455.scaling.concurrent.FairScheduler;
+import cs455.scaling.concurrent.InlineExecutor;
+import cs455.scaling.concurrent.TaskExecutor;
 import cs455.scaling.concurrent.ThreadPool;
-import cs455.scaling.tasks.ReadMessageAndRespond;
+import cs455.scaling.concurrent.VirtualThreadExecutor;
+import cs455.scaling.hash.HashFunctions;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.util.BufferPool;
+import cs455.scaling.util.MetricsEndpoint;
+import cs455.scaling.util.ResponseCache;
 import cs455.scaling.util.StatisticsCollectorAndDisplay;
+import cs455.scaling.util.TokenBucket;
 
 public class Server {
-	private ThreadPool threadpool;
-	private List<ClientConnection> clientCache = new LinkedList<ClientConnection>();
+	// Big enough for a frame header and any supported hash
+	private static final int RESPONSE_BUFFER_SIZE = WireFormat.HEADER_SIZE + HashFunctions.MAX_DIGEST_LENGTH;
+	private static final int RESPONSE_POOL_SIZE = 16 * 1024;
+	private TaskExecutor threadpool;
+	private ServerMetrics metrics;
+	private ServerConfig config;
+	private BufferPool bufferPool;
+	private BufferPool responsePool;
+	// Shared by every connection, null unless --cache-entries is set
+	private ResponseCache responseCache;
+	// Live connections, a connection leaves as soon as it dies
+	private final ConnectionRegistry connections = new ConnectionRegistry();
+	// Reused by the diagnostics thread every interval
+	private final StatisticsCollectorAndDisplay stats = new StatisticsCollectorAndDisplay();
+	// Worker selectors that own client connections, empty in single reactor mode
+	private Reactor [] reactors = new Reactor [0];
+	private int nextReactor = 0;
+	// Everything shutdown has to stop
+	private final List<ServerSocketChannel> listeners = new ArrayList<ServerSocketChannel>();
+	private Reactor boss;
+	private Thread [] reactorThreads = new Thread [0];
+	private Thread bossThread;
+	private Thread dianosticsThread;
+	private MetricsEndpoint metricsEndpoint;
+	private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
 	
 	/**
-	 * Creates a task for reading the msg, hashing, and responding to the client
-	 * @param client - the socket channel to read from
+	 * Sets up the executor and buffers, nothing listens until the server is started
+	 * @throws UnsupportedOperationException if the executor asked for needs a newer Java
 	 */
-	private void respondToClient (SelectionKey client) {
-		((ClientConnection) client.attachment()).setIsReading(true);	// So the server knows that this read is handled
-		ReadMessageAndRespond task = new ReadMessageAndRespond(client);
-		threadpool.offerTask(task);
+	public Server(ServerConfig config) {
+		this.config = config;
+		// Virtual threads are short lived, buffers left in their thread caches would never be seen again
+		int threadCacheSize = config.getExecutionMode() == ServerConfig.ExecutionMode.POOL ? 16 : 0;
+		bufferPool = new BufferPool(WireFormat.LEGACY_MESSAGE_SIZE, config.getBufferPoolSize(),
+				threadCacheSize, false);
+		responsePool = new BufferPool(RESPONSE_BUFFER_SIZE, RESPONSE_POOL_SIZE, threadCacheSize, false);
+		if (config.getCacheEntries() > 0) {
+			responseCache = new ResponseCache(config.getCacheEntries(), config.getCacheMaxPayload());
+		}
+		switch (config.getExecutionMode()) {
+		case POOL:
+			if (config.getScheduler() == ServerConfig.Scheduler.DRR) {
+				threadpool = new FairScheduler(config.getThreadPoolSize(), config.getQueueCapacity());
+			} else {
+				threadpool = new ThreadPool(config.getThreadPoolSize(), config.getQueueCapacity());
+			}
+			break;
+		case VIRTUAL:
+			threadpool = new VirtualThreadExecutor(config.getQueueCapacity());
+			break;
+		case VIRTUAL_PER_CONNECTION:
+			// Fails early if there are no virtual threads. Connection threads hash inline,
+			// the executor starts no threads and only collects their service times.
+			VirtualThreadExecutor.newThreadFactory("VirtualConn-");
+			threadpool = new InlineExecutor();
+			break;
+		}
+		threadpool.initialize();
+		metrics = new ServerMetrics(threadpool, responseCache);
+	}
+	
+	ServerConfig getConfig() {
+		return config;
+	}
+	
+	TaskExecutor getThreadPool() {
+		return threadpool;
+	}
+	
+	ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/**
+	 * Picks the worker reactor that will own a newly accepted connection
+	 * @param acceptor - the reactor that accepted the connection, used when there are no workers
+	 */
+	private Reactor chooseReactor (Reactor acceptor) {
+		// With SO_REUSEPORT the kernel already picked the reactor
+		if (reactors.length == 0 || config.isReusePort()) {
+			return acceptor;
+		}
+		if (config.getAcceptBalance() == ServerConfig.AcceptBalance.LEAST_LOADED) {
+			Reactor least = reactors[0];
+			for (int i = 1; i < reactors.length; i++) {
+				if (reactors[i].getConnectionCount() < least.getConnectionCount()) {
+					least = reactors[i];
+				}
+			}
+			return least;
+		}
+		Reactor next = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+		return next;
 	}
 	
-	private void registerNewConnection (Selector selector, ServerSocketChannel serversocket) {
+	/**
+	 * Accepts a pending connection and hands it to a reactor.
+	 * Only called from the accepting reactor's thread.
+	 */
+	void registerNewConnection (Reactor acceptor, ServerSocketChannel serversocket) {
 		SocketChannel newClient;
 		try {
 			newClient = serversocket.accept();
+			if (newClient == null) {
+				return;
+			}
+			if (!admit(newClient)) {
+				return;
+			}
 			newClient.configureBlocking(false);
-			ClientConnection clientconnection = new ClientConnection(newClient);
-			synchronized (clientCache) {
-				clientCache.add(clientconnection);
+			config.getSocketTuning().applyTo(newClient);
+			WireFormat format = config.getWireFormat();
+			ClientConnection clientconnection = new ClientConnection(newClient, format,
+					format.newDecoder(bufferPool, config.getMaxPayload(), config.getStreamThreshold(),
+							config.getHashFunction()),
+					responsePool, config.getHashFunction(), responseCache, config.getMaxInFlight(), metrics);
+			InetSocketAddress address = (InetSocketAddress) newClient.getRemoteAddress();
+			clientconnection.setSchedulingWeight(config.getWeight(address));
+			if (config.isRateLimited()) {
+				clientconnection.setQuota(newQuota(config.getRateLimitMessages(address)),
+						newQuota(config.getRateLimitBytes(address)));
 			}
-			newClient.register(selector, SelectionKey.OP_READ, clientconnection);
+			metrics.accepted.increment();
+			connections.add(clientconnection);
+			chooseReactor(acceptor).assign(clientconnection);
 		} catch (IOException e) {
 			System.err.println("Unable to register new client");
 		}
 	}
 	
-	private void collectDiagnosticsAndDisplay() {
-		StatisticsCollectorAndDisplay stats = new StatisticsCollectorAndDisplay();
-		List<Double> clientData = new ArrayList<Double>();
-		List<ClientConnection> cleanUpList = new ArrayList<ClientConnection>(clientCache.size());
-		synchronized (clientCache) {
-			for (ClientConnection c : clientCache) {
-				if (!c.isDead()) {
-					clientData.add((double) c.getAndResetThroughput());
-				} else {
-					// To be cleaned up later
-					cleanUpList.add(c);
+	/**
+	 * @return a bucket refilled at ratePerSecond, or null for no limit
+	 */
+	private TokenBucket newQuota (int ratePerSecond) {
+		if (ratePerSecond == 0) {
+			return null;
+		}
+		return new TokenBucket(ratePerSecond, TimeUnit.MILLISECONDS.toNanos(config.getRateLimitBurstMillis()));
+	}
+	
+	/**
+	 * Closes a new connection straight away when the server already holds max-connections
+	 * @return false if the connection was refused
+	 */
+	private boolean admit (SocketChannel newClient) {
+		int limit = config.getMaxConnections();
+		if (limit == 0 || connections.size() < limit) {
+			return true;
+		}
+		metrics.connectionsRejected.increment();
+		try {
+			newClient.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close refused client: " + e.getMessage());
+		}
+		return false;
+	}
+	
+	/**
+	 * Wraps a connection accepted in blocking mode, for the thread per connection executor
+	 */
+	private ClientConnection newBlockingConnection (SocketChannel socket) {
+		WireFormat format = config.getWireFormat();
+		ClientConnection clientconnection = new ClientConnection(socket, format,
+				format.newDecoder(bufferPool, config.getMaxPayload(), config.getStreamThreshold(),
+						config.getHashFunction()),
+				responsePool, config.getHashFunction(), responseCache, config.getMaxInFlight(), metrics);
+		metrics.accepted.increment();
+		connections.add(clientconnection);
+		return clientconnection;
+	}
+	
+	/**
+	 * Accepts on this thread and serves every connection on its own virtual thread with
+	 * plain blocking reads and writes. No selectors are involved.
+	 */
+	private void acceptPerConnection (ServerSocketChannel serversocket) {
+		ThreadFactory factory = VirtualThreadExecutor.newThreadFactory("VirtualConn-");
+		while (serversocket.isOpen()) {
+			try {
+				SocketChannel newClient = serversocket.accept();
+				if (!admit(newClient)) {
+					continue;
+				}
+				config.getSocketTuning().applyTo(newClient);
+				factory.newThread(new BlockingConnectionHandler(newBlockingConnection(newClient),
+						threadpool.getServiceTimeHistogram())).start();
+			} catch (IOException e) {
+				// Closing the socket to shut down also ends up here
+				if (serversocket.isOpen()) {
+					System.err.println("Unable to register new client");
 				}
 			}
-			// Clean up cancelled clients
-			for (ClientConnection i : cleanUpList) {
-				clientCache.remove(i);
+		}
+	}
+	
+	private void collectDiagnosticsAndDisplay() {
+		stats.reset();
+		for (ClientConnection c : connections.getConnections()) {
+			if (!c.isDead()) {
+				stats.accept(c.getAndResetThroughput());
 			}
-			System.out.println("Now there are " + clientCache.size() + " clients in the cache");
 		}
-		stats.acceptNewDoubleValues(clientData);
+		System.out.println("Now there are " + stats.getCount() + " clients in the cache");
 		stats.displayStatistics();
+		metrics.clientThroughputMean = stats.getMean();
+		metrics.clientThroughputStdDev = stats.getStdDev();
+		System.out.println("Queue wait: " + threadpool.getQueueWaitHistogram().snapshotAndReset());
+		System.out.println("Service time: " + threadpool.getServiceTimeHistogram().snapshotAndReset());
+		System.out.println(bufferPool);
+		System.out.println(responsePool);
+		if (responseCache != null) {
+			System.out.printf("ResponseCache[entries=%d, hits=%d, misses=%d, evictions=%d, collisions=%d]\n",
+					responseCache.size(), responseCache.getHits(), responseCache.getMisses(),
+					responseCache.getEvictions(), responseCache.getCollisions());
+		}
 	}
 	
-	private void startServer(int portnum) {
-		Selector selector;
-		ServerSocketChannel serversocket;
+	/**
+	 * Stops the server without failing requests it has already read. New connections are
+	 * refused, each connection stops being read, and is closed once its last response is
+	 * written. Connections still busy after --drain-timeout-s are closed anyway. Then the pool
+	 * finishes what it holds and every thread the server started is stopped.
+	 * 
+	 * Safe to call from any thread, only the first call does anything.
+	 * @return true if every connection drained in time
+	 */
+	public boolean shutdown() {
+		if (!shuttingDown.compareAndSet(false, true)) {
+			return false;
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getDrainTimeoutSeconds());
+		// Requests the executor turns away while it stops are reported once, not one line each
+		long rejectedBefore = metrics.rejected.get();
+		System.out.println("Shutting down, draining " + connections.size() + " connections");
+		for (ServerSocketChannel listener : listeners) {
+			try {
+				listener.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close server socket: " + e.getMessage());
+			}
+		}
+		if (boss != null) {
+			boss.startDraining();
+			for (Reactor reactor : reactors) {
+				reactor.startDraining();
+			}
+		} else {
+			// A blocked read ends with end of stream, after the response to the message in hand
+			for (ClientConnection c : connections.getConnections()) {
+				try {
+					c.getSocket().shutdownInput();
+				} catch (IOException e) {
+					c.close();
+				}
+			}
+		}
+		while (connections.size() > 0 && System.nanoTime() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		int abandoned = connections.size();
+		long remaining = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+		boolean poolDrained = threadpool.shutdown(remaining);
+		// Reactors close what is left on their own threads
+		if (boss != null) {
+			boss.stop();
+			for (Reactor reactor : reactors) {
+				reactor.stop();
+			}
+			joinQuietly(bossThread);
+			for (Thread thread : reactorThreads) {
+				joinQuietly(thread);
+			}
+		}
+		for (ClientConnection c : connections.getConnections()) {
+			c.close();
+		}
+		if (dianosticsThread != null) {
+			dianosticsThread.interrupt();
+		}
+		if (metricsEndpoint != null) {
+			metricsEndpoint.stop();
+		}
+		long rejected = metrics.rejected.get() - rejectedBefore;
+		if (rejected > 0) {
+			System.out.println("Rejected " + rejected + " requests while shutting down");
+		}
+		if (abandoned > 0 || !poolDrained) {
+			System.out.println("Shutdown deadline passed, closed " + abandoned + " busy connections");
+		} else {
+			System.out.println("Shutdown complete, every request was answered");
+		}
+		return abandoned == 0 && poolDrained;
+	}
+	
+	private static void joinQuietly(Thread thread) {
+		if (thread == null || thread == Thread.currentThread()) {
+			return;
+		}
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Reads commands typed on the server's console. Ends quietly if there is no console.
+	 */
+	private void startAdminConsole() {
+		Thread console = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						String command = line.trim();
+						if (command.equals("shutdown")) {
+							shutdown();
+							System.exit(0);
+						} else if (command.equals("stats")) {
+							collectDiagnosticsAndDisplay();
+						} else if (!command.isEmpty()) {
+							System.out.println("Commands: shutdown, stats");
+						}
+					}
+				} catch (IOException e) {
+					System.err.println("Admin console closed: " + e.getMessage());
+				}
+			}
+		}, "AdminConsole");
+		console.setDaemon(true);
+		console.start();
+	}
+	
+	/**
+	 * Binds a listening socket on the port with the configured socket options
+	 */
+	private ServerSocketChannel openListener(int portnum, boolean blocking) throws IOException {
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		config.getSocketTuning().bind(listener, new InetSocketAddress(portnum), config.isReusePort());
+		listener.configureBlocking(blocking);
+		listeners.add(listener);
+		return listener;
+	}
+	
+	/**
+	 * Binds the port and starts the diagnostics and the metrics endpoint
+	 * @return false if the server could not listen
+	 */
+	private boolean listen(int portnum) {
+		boolean perConnection = config.getExecutionMode() == ServerConfig.ExecutionMode.VIRTUAL_PER_CONNECTION;
 		try {
-			selector = Selector.open();
 			// Create and register serversocket
-			serversocket = ServerSocketChannel.open();
-			serversocket.bind(new InetSocketAddress(portnum));
-			serversocket.configureBlocking(false);
-			serversocket.register(selector, SelectionKey.OP_ACCEPT);
+			if (perConnection) {
+				openListener(portnum, true);
+			} else {
+				boss = new Reactor(this, "Reactor-Boss");
+				reactors = new Reactor [config.getReactorCount()];
+				for (int i = 0; i < reactors.length; i++) {
+					reactors[i] = new Reactor(this, "Reactor-" + i);
+				}
+				if (config.isReusePort() && reactors.length > 0) {
+					// Every worker accepts for itself, the boss is left with nothing to do
+					for (Reactor reactor : reactors) {
+						reactor.listen(openListener(portnum, false));
+					}
+				} else {
+					boss.listen(openListener(portnum, false));
+				}
+			}
 			// Print server state
 			System.out.println("Server Listening on -> " 
-					+ InetAddress.getLocalHost().getHostAddress() + ":" + portnum);
-		} catch (IOException e) {
-			System.err.println("Failed to start server");
-			return;
+					+ InetAddress.getLocalHost().getHostAddress() + ":" + portnum
+					+ (listeners.size() > 1 ? " (" + listeners.size() + " SO_REUSEPORT listeners)" : ""));
+		} catch (IOException | UnsupportedOperationException e) {
+			System.err.println("Failed to start server: " + e.getMessage());
+			return false;
 		}
 		
-		Thread dianosticsThread = new Thread (new Runnable() {
+		dianosticsThread = new Thread (new Runnable() {
 			@Override
 			public void run() {
 				while (true) {
-					int seconds = 20;
 					try {
-						Thread.sleep(1000 * seconds);
+						Thread.sleep(1000L * config.getStatsIntervalSeconds());
 						collectDiagnosticsAndDisplay();
 					} catch (InterruptedException e) {
-						e.printStackTrace();
+						return;		// Shutting down
 					}
 				}
 			}
 		});
+		dianosticsThread.setDaemon(true);
 		dianosticsThread.start();
 		
-		while (true) {
-			Set<SelectionKey> selectedKeys = null;
-			Iterator<SelectionKey> iter = null;
-			SelectionKey key = null;
+		if (config.getMetricsPort() > 0) {
 			try {
-				selector.select();
-				selectedKeys = selector.selectedKeys();
-	            iter = selectedKeys.iterator();
-	            while (iter.hasNext()) {
-	            	key = iter.next();
-	                if (key.isAcceptable()) {
-	                    registerNewConnection(selector, serversocket);
-	                }
-	                if (key.isReadable()) {
-	                	// If write to the client caused an IOException than this client is dead, we want to remove it
-	                    // Lock the key from producing a task until the read is finished
-	                	ClientConnection client = ((ClientConnection) key.attachment());
-	                	if (!client.isReading() && !client.isDead()) {
-	                		respondToClient(key);
-	                	}
-	                }
-	                iter.remove();
-	            }
-			} catch (CancelledKeyException e) {
-				System.err.println("Selected key was cancelled due to IOException");
-				continue;
+				metricsEndpoint = new MetricsEndpoint(metrics.getRegistry(), config.getMetricsPort());
+				new Thread(metricsEndpoint, "MetricsEndpoint").start();
+				System.out.println("Metrics served on port " + config.getMetricsPort());
 			} catch (IOException e) {
-				System.err.println("Select operation failed: " + e.getMessage());
-				return;
+				System.err.println("Failed to start metrics endpoint: " + e.getMessage());
 			}
 		}
+		
+		return true;
+	}
+	
+	/**
+	 * Accepts and serves connections on the calling thread until the server shuts down
+	 */
+	private void serve() {
+		if (config.getExecutionMode() == ServerConfig.ExecutionMode.VIRTUAL_PER_CONNECTION) {
+			acceptPerConnection(listeners.get(0));
+			return;
+		}
+		reactorThreads = new Thread [reactors.length];
+		for (int i = 0; i < reactors.length; i++) {
+			reactorThreads[i] = new Thread(reactors[i], reactors[i].getName());
+			reactorThreads[i].start();
+		}
+		// The boss accepts on this thread, and also reads when there are no worker reactors
+		bossThread = Thread.currentThread();
+		boss.run();
+	}
+	
+	private void startServer(int portnum) {
+		if (!listen(portnum)) {
+			return;
+		}
+		// Kill and Ctrl-C drain the server instead of dropping what is in flight
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		}, "ShutdownHook"));
+		startAdminConsole();
+		serve();
+	}
+	
+	/**
+	 * Starts the server on a thread of its own, for running it inside another program.
+	 * There is no shutdown hook or console, the caller stops it with shutdown.
+	 * @return false if the server could not listen on its port
+	 */
+	public boolean startInBackground() {
+		if (!listen(config.getPortnum())) {
+			return false;
+		}
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "Server").start();
+		return true;
 	}
 	
 	private static void usage() {
-		System.out.println("java cs455.scaling.server.Server <portnum> <thread-pool-size>");
+		System.out.println("java cs455.scaling.server.Server <portnum> <thread-pool-size> [reactor-count] [options]");
+		System.out.print(ServerConfig.OPTIONS_USAGE);
 		System.exit(1);
 	}
 	
 	public static void main (String args []) {
-		if (args.length != 2) {
+		ServerConfig config = null;
+		try {
+			config = ServerConfig.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
 			usage();
 		}
-		int portnum = Integer.parseInt(args[0]);
-		int threadpoolsize = Integer.parseInt(args[1]);
-		Server server = new Server();
-		server.threadpool = new ThreadPool(threadpoolsize);
-		server.threadpool.initialize();
-		server.startServer(portnum);
+		Server server = null;
+		try {
+			server = new Server(config);
+		} catch (UnsupportedOperationException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		server.startServer(config.getPortnum());
 	}
 }
@@ -0,0 +1,488 @@
+package cs455.scaling.server;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import cs455.scaling.concurrent.ThreadPool;
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+import cs455.scaling.protocol.WireFormat;
+import cs455.scaling.util.SocketTuning;
+
+/**
+ * Command line configuration for the server.
+ * The port, thread pool size and reactor count are positional, everything else is an
+ * optional --name=value flag that falls back to the defaults below.
+ * @author Brandt Reutimann
+ */
+public class ServerConfig {
+	public enum AcceptBalance { ROUND_ROBIN, LEAST_LOADED }
+	public enum ExecutionMode { POOL, VIRTUAL, VIRTUAL_PER_CONNECTION }
+	public enum OverloadPolicy { BLOCK, PAUSE, REJECT, SHED_OLDEST }
+	public enum Scheduler { FIFO, DRR }
+	
+	private int portnum;
+	private int threadPoolSize;
+	// Worker selector threads, 0 runs accepts and reads on a single selector
+	private int reactorCount = 0;
+	private AcceptBalance acceptBalance = AcceptBalance.ROUND_ROBIN;
+	// Number of ready connections handed to a worker at once, 1 disables batching
+	private int batchSize = 1;
+	// Longest a partial batch may wait for more connections, 0 flushes after every select pass
+	private long batchDelayMillis = 0;
+	// Upper bound on pooled 8 KB message buffers
+	private int bufferPoolSize = 1024;
+	private WireFormat wireFormat = WireFormat.LEGACY;
+	// Largest request payload accepted in the framed format
+	private int maxPayload = WireFormat.DEFAULT_MAX_PAYLOAD;
+	// Hash for every connection that does not negotiate its own
+	private HashFunction hashFunction = HashFunctions.SHA1;
+	// Framed requests with a longer payload are hashed as they arrive, negative always buffers them
+	private int streamThreshold = WireFormat.LEGACY_MESSAGE_SIZE;
+	// What runs the hashing, the fixed thread pool, a virtual thread per task, or a virtual thread per connection
+	private ExecutionMode executionMode = ExecutionMode.POOL;
+	// Port of the Prometheus endpoint, 0 disables it
+	private int metricsPort = 0;
+	private int statsIntervalSeconds = 20;
+	// Tasks the executor holds before the overload policy kicks in
+	private int queueCapacity = ThreadPool.DEFAULT_QUEUE_CAPACITY;
+	private OverloadPolicy overloadPolicy = OverloadPolicy.PAUSE;
+	// FIFO runs tasks in arrival order, DRR shares the workers evenly between connections
+	private Scheduler scheduler = Scheduler.FIFO;
+	// Weights of clients under DRR by "host" or "host:port", clients not listed weigh 1
+	private final Map<String, Integer> weights = new HashMap<String, Integer>();
+	// Per client quota in messages and bytes read per second, 0 for no limit
+	private int rateLimitMessages = 0;
+	private int rateLimitBytes = 0;
+	// Quotas of clients by "host" or "host:port" as { messages, bytes }, overriding the two above
+	private final Map<String, int []> rateLimits = new HashMap<String, int []>();
+	// A client may run this far ahead of its quota before it is throttled
+	private int rateLimitBurstMillis = 1000;
+	// Framed requests a connection may have in flight before it stops being read
+	private int maxInFlight = 128;
+	// Connections beyond this are closed as soon as they are accepted, 0 for no limit
+	private int maxConnections = 0;
+	// Connections with no traffic for this long are closed, 0 keeps them forever
+	private int idleTimeoutSeconds = 0;
+	// Longest a shutdown waits for in-flight requests before closing connections anyway
+	private int drainTimeoutSeconds = 10;
+	// Digests of recent payloads kept to answer repeats without hashing, 0 turns the cache off
+	private int cacheEntries = 0;
+	private int cacheMaxPayload = WireFormat.LEGACY_MESSAGE_SIZE;
+	private final SocketTuning socketTuning = new SocketTuning();
+	// Every reactor binds its own listener on the port and the kernel spreads accepts over them
+	private boolean reusePort = false;
+	
+	public static final String OPTIONS_USAGE = 
+			"  [reactor-count]         worker selector threads fed by an accepting selector (default 0)\n"
+		+	"  --accept-balance=<p>    round-robin or least-loaded placement of new connections\n"
+		+	"  --batch-size=<n>        ready connections grouped into one task (default 1, no batching)\n"
+		+	"  --batch-delay-ms=<n>    max time a partial batch waits before dispatch (default 0)\n"
+		+	"  --buffer-pool-size=<n>  max pooled direct message buffers (default 1024)\n"
+		+	"  --protocol=<p>          legacy (fixed 8 KB messages) or framed (length prefixed, pipelined)\n"
+		+	"  --max-payload=<n>       largest framed request in bytes (default 16 MiB)\n"
+		+	"  --hash=<name>           sha1, sha256, crc32c or xxhash64 (default sha1)\n"
+		+	"  --stream-threshold=<n>  framed requests over n bytes are hashed as they arrive (default 8000, -1 never)\n"
+		+	"  --executor=<e>          pool, virtual (thread per task) or virtual-per-connection (blocking I/O,\n"
+		+	"                          no reactors), the virtual modes need Java 21 (default pool)\n"
+		+	"  --metrics-port=<n>      serve metrics in Prometheus format on this port (default 0, off)\n"
+		+	"  --stats-interval-s=<n>  seconds between console statistics (default 20)\n"
+		+	"  --idle-timeout-s=<n>    close connections with no traffic for n seconds (default 0, never)\n"
+		+	"  --queue-capacity=<n>    tasks waiting for a worker before the server is overloaded (default 65536)\n"
+		+	"  --overload=<p>          when the queue is full: block, pause (stop reading the client),\n"
+		+	"                          reject (error frame) or shed-oldest (default pause)\n"
+		+	"  --scheduler=<s>         fifo (tasks in arrival order) or drr (deficit round-robin across\n"
+		+	"                          connections, so heavy clients can not starve light ones) (default fifo)\n"
+		+	"  --weights=<list>        drr shares per client as host[:port]=weight,... (default 1 each)\n"
+		+	"  --rate-limit-msgs=<n>   messages per second each client may send (default 0, no limit)\n"
+		+	"  --rate-limit-bytes=<n>  bytes per second each client may send (default 0, no limit)\n"
+		+	"  --rate-limits=<list>    quotas of particular clients as host[:port]=msgs/bytes,... (0 no limit)\n"
+		+	"  --rate-limit-burst-ms=<n>\n"
+		+	"                          milliseconds a client may run ahead of its quota (default 1000)\n"
+		+	"  --max-in-flight=<n>     framed requests per connection before it stops being read (default 128)\n"
+		+	"  --max-connections=<n>   connections beyond n are closed on accept (default 0, no limit)\n"
+		+	"  --drain-timeout-s=<n>   on shutdown, seconds to finish requests already read (default 10)\n"
+		+	"  --cache-entries=<n>     remember the digests of n recent payloads (default 0, off)\n"
+		+	"  --cache-max-payload=<n> largest payload cached in bytes, each entry reserves this much\n"
+		+	"                          off heap (default 8000)\n"
+		+	"  --reuse-port=<b>        each reactor accepts on its own SO_REUSEPORT listener, instead of\n"
+		+	"                          one accepting selector handing connections out (default false)\n"
+		+	SocketTuning.USAGE
+		+	SocketTuning.SERVER_USAGE;
+	
+	/**
+	 * @throws IllegalArgumentException if the arguments are malformed
+	 */
+	public static ServerConfig parse (String [] args) {
+		if (args.length < 2) {
+			throw new IllegalArgumentException("Missing <portnum> or <thread-pool-size>");
+		}
+		ServerConfig config = new ServerConfig();
+		config.portnum = parseInt("portnum", args[0]);
+		config.threadPoolSize = parseInt("thread-pool-size", args[1]);
+		int i = 2;
+		if (args.length > 2 && !args[2].startsWith("--")) {
+			config.reactorCount = parseInt("reactor-count", args[2]);
+			i++;
+		}
+		for (; i < args.length; i++) {
+			String arg = args[i];
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split == -1) {
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			}
+			config.setOption(arg.substring(2, split), arg.substring(split + 1));
+		}
+		if (config.threadPoolSize < 1) {
+			throw new IllegalArgumentException("thread-pool-size must be at least 1");
+		}
+		if (config.reactorCount < 0) {
+			throw new IllegalArgumentException("reactor-count must not be negative");
+		}
+		if (config.maxPayload < 0) {
+			throw new IllegalArgumentException("max-payload must not be negative");
+		}
+		if (config.bufferPoolSize < 1) {
+			throw new IllegalArgumentException("buffer-pool-size must be at least 1");
+		}
+		if (config.queueCapacity < 1 || config.maxInFlight < 1) {
+			throw new IllegalArgumentException("queue-capacity and max-in-flight must be at least 1");
+		}
+		if (config.maxConnections < 0) {
+			throw new IllegalArgumentException("max-connections must not be negative");
+		}
+		if (config.cacheEntries < 0 || config.cacheMaxPayload < 1) {
+			throw new IllegalArgumentException("cache-entries must not be negative, cache-max-payload must be at least 1");
+		}
+		// Each of the cache's 16 segments is a single direct buffer
+		if ((long) (config.cacheEntries / 16 + 1) * config.cacheMaxPayload > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("cache-entries * cache-max-payload must stay under 32 GB");
+		}
+		if (config.reusePort && config.executionMode == ExecutionMode.VIRTUAL_PER_CONNECTION) {
+			throw new IllegalArgumentException("reuse-port needs reactors, it does not apply to virtual-per-connection");
+		}
+		if (config.drainTimeoutSeconds < 0) {
+			throw new IllegalArgumentException("drain-timeout-s must not be negative");
+		}
+		if (config.idleTimeoutSeconds < 0) {
+			throw new IllegalArgumentException("idle-timeout-s must not be negative");
+		}
+		if (config.statsIntervalSeconds < 1) {
+			throw new IllegalArgumentException("stats-interval-s must be at least 1");
+		}
+		if (config.batchSize < 1) {
+			throw new IllegalArgumentException("batch-size must be at least 1");
+		}
+		if (config.batchDelayMillis < 0) {
+			throw new IllegalArgumentException("batch-delay-ms must not be negative");
+		}
+		if (config.scheduler == Scheduler.DRR
+				&& (config.executionMode != ExecutionMode.POOL || config.batchSize > 1)) {
+			throw new IllegalArgumentException("scheduler=drr needs the pool executor and no batching,"
+					+ " a batch mixes connections and virtual threads have no queue to reorder");
+		}
+		if (!config.weights.isEmpty() && config.scheduler != Scheduler.DRR) {
+			throw new IllegalArgumentException("weights requires --scheduler=drr");
+		}
+		if (config.rateLimitMessages < 0 || config.rateLimitBytes < 0 || config.rateLimitBurstMillis < 1) {
+			throw new IllegalArgumentException("rate-limit-msgs and rate-limit-bytes must not be negative,"
+					+ " rate-limit-burst-ms must be at least 1");
+		}
+		if (config.isRateLimited() && config.executionMode == ExecutionMode.VIRTUAL_PER_CONNECTION) {
+			throw new IllegalArgumentException("rate limits are enforced by the reactors, they do not apply to virtual-per-connection");
+		}
+		return config;
+	}
+	
+	private void setOption (String name, String value) {
+		if (socketTuning.setOption(name, value)) {
+			return;
+		}
+		switch (name) {
+		case "accept-balance":
+			try {
+				acceptBalance = AcceptBalance.valueOf(value.toUpperCase().replace('-', '_'));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("accept-balance must be round-robin or least-loaded");
+			}
+			break;
+		case "batch-size":
+			batchSize = parseInt(name, value);
+			break;
+		case "batch-delay-ms":
+			batchDelayMillis = parseInt(name, value);
+			break;
+		case "protocol":
+			try {
+				wireFormat = WireFormat.fromName(value);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("protocol must be legacy or framed");
+			}
+			break;
+		case "executor":
+			try {
+				executionMode = ExecutionMode.valueOf(value.toUpperCase().replace('-', '_'));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("executor must be pool, virtual or virtual-per-connection");
+			}
+			break;
+		case "metrics-port":
+			metricsPort = parseInt(name, value);
+			break;
+		case "queue-capacity":
+			queueCapacity = parseInt(name, value);
+			break;
+		case "overload":
+			try {
+				overloadPolicy = OverloadPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("overload must be block, pause, reject or shed-oldest");
+			}
+			break;
+		case "scheduler":
+			try {
+				scheduler = Scheduler.valueOf(value.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("scheduler must be fifo or drr");
+			}
+			break;
+		case "weights":
+			for (String entry : value.split(",")) {
+				int split = entry.lastIndexOf('=');
+				if (split < 1) {
+					throw new IllegalArgumentException("weights must be host[:port]=weight,..., got: " + entry);
+				}
+				int weight = parseInt(name, entry.substring(split + 1).trim());
+				if (weight < 1) {
+					throw new IllegalArgumentException("weights must be at least 1, got: " + entry);
+				}
+				weights.put(entry.substring(0, split).trim(), weight);
+			}
+			break;
+		case "rate-limit-msgs":
+			rateLimitMessages = parseInt(name, value);
+			break;
+		case "rate-limit-bytes":
+			rateLimitBytes = parseInt(name, value);
+			break;
+		case "rate-limit-burst-ms":
+			rateLimitBurstMillis = parseInt(name, value);
+			break;
+		case "rate-limits":
+			for (String entry : value.split(",")) {
+				int split = entry.lastIndexOf('=');
+				int slash = entry.indexOf('/', split + 1);
+				if (split < 1 || slash == -1) {
+					throw new IllegalArgumentException("rate-limits must be host[:port]=msgs/bytes,..., got: " + entry);
+				}
+				int [] limits = {
+					parseInt(name, entry.substring(split + 1, slash).trim()),
+					parseInt(name, entry.substring(slash + 1).trim())
+				};
+				if (limits[0] < 0 || limits[1] < 0) {
+					throw new IllegalArgumentException("rate-limits must not be negative, got: " + entry);
+				}
+				rateLimits.put(entry.substring(0, split).trim(), limits);
+			}
+			break;
+		case "max-in-flight":
+			maxInFlight = parseInt(name, value);
+			break;
+		case "max-connections":
+			maxConnections = parseInt(name, value);
+			break;
+		case "idle-timeout-s":
+			idleTimeoutSeconds = parseInt(name, value);
+			break;
+		case "reuse-port":
+			if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+				throw new IllegalArgumentException("reuse-port must be true or false, got: " + value);
+			}
+			reusePort = Boolean.parseBoolean(value);
+			break;
+		case "cache-entries":
+			cacheEntries = parseInt(name, value);
+			break;
+		case "cache-max-payload":
+			cacheMaxPayload = parseInt(name, value);
+			break;
+		case "drain-timeout-s":
+			drainTimeoutSeconds = parseInt(name, value);
+			break;
+		case "stats-interval-s":
+			statsIntervalSeconds = parseInt(name, value);
+			break;
+		case "hash":
+			hashFunction = HashFunctions.forName(value);
+			break;
+		case "stream-threshold":
+			streamThreshold = parseInt(name, value);
+			break;
+		case "max-payload":
+			maxPayload = parseInt(name, value);
+			break;
+		case "buffer-pool-size":
+			bufferPoolSize = parseInt(name, value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: --" + name);
+		}
+	}
+	
+	private static int parseInt (String name, String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number, got: " + value);
+		}
+	}
+
+	public int getPortnum() {
+		return portnum;
+	}
+
+	public int getThreadPoolSize() {
+		return threadPoolSize;
+	}
+
+	public int getReactorCount() {
+		return reactorCount;
+	}
+
+	public AcceptBalance getAcceptBalance() {
+		return acceptBalance;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getBatchDelayMillis() {
+		return batchDelayMillis;
+	}
+	
+	public int getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+	
+	public WireFormat getWireFormat() {
+		return wireFormat;
+	}
+	
+	public int getMaxPayload() {
+		return maxPayload;
+	}
+	
+	public HashFunction getHashFunction() {
+		return hashFunction;
+	}
+	
+	public int getStreamThreshold() {
+		return streamThreshold;
+	}
+	
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+	
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+	
+	public int getStatsIntervalSeconds() {
+		return statsIntervalSeconds;
+	}
+	
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	public OverloadPolicy getOverloadPolicy() {
+		return overloadPolicy;
+	}
+	
+	public Scheduler getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * @return the weight given for the client's host and port, or else for its host, or else 1
+	 */
+	public int getWeight(InetSocketAddress client) {
+		Integer weight = lookup(weights, client);
+		return weight == null ? 1 : weight;
+	}
+	
+	/**
+	 * @return the entry for the client's host and port, or else for its host, or null
+	 */
+	private static <T> T lookup(Map<String, T> byClient, InetSocketAddress client) {
+		String host = client.getAddress().getHostAddress();
+		T value = byClient.get(host + ":" + client.getPort());
+		return value == null ? byClient.get(host) : value;
+	}
+	
+	/**
+	 * @return true if any client has a quota
+	 */
+	public boolean isRateLimited() {
+		return rateLimitMessages > 0 || rateLimitBytes > 0 || !rateLimits.isEmpty();
+	}
+	
+	/**
+	 * @return messages per second the client may send, 0 for no limit
+	 */
+	public int getRateLimitMessages(InetSocketAddress client) {
+		int [] limits = lookup(rateLimits, client);
+		return limits == null ? rateLimitMessages : limits[0];
+	}
+	
+	/**
+	 * @return bytes per second the client may send, 0 for no limit
+	 */
+	public int getRateLimitBytes(InetSocketAddress client) {
+		int [] limits = lookup(rateLimits, client);
+		return limits == null ? rateLimitBytes : limits[1];
+	}
+	
+	public int getRateLimitBurstMillis() {
+		return rateLimitBurstMillis;
+	}
+	
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	
+	public SocketTuning getSocketTuning() {
+		return socketTuning;
+	}
+	
+	public boolean isReusePort() {
+		return reusePort;
+	}
+	
+	public int getCacheEntries() {
+		return cacheEntries;
+	}
+	
+	public int getCacheMaxPayload() {
+		return cacheMaxPayload;
+	}
+	
+	public int getDrainTimeoutSeconds() {
+		return drainTimeoutSeconds;
+	}
+	
+	public int getIdleTimeoutSeconds() {
+		return idleTimeoutSeconds;
+	}
+	
+	public boolean isBatching() {
+		return batchSize > 1;
+	}
+}
@@ -0,0 +1,113 @@
+package cs455.scaling.server;
+
+import java.util.function.DoubleSupplier;
+
+import cs455.scaling.concurrent.TaskExecutor;
+import cs455.scaling.util.MetricsRegistry;
+import cs455.scaling.util.ResponseCache;
+import cs455.scaling.util.MetricsRegistry.Counter;
+
+/**
+ * The server's metrics, registered once and updated from the reactors and workers.
+ * Everything here ends up on the metrics endpoint when --metrics-port is set.
+ * @author Brandt Reutimann
+ */
+public class ServerMetrics {
+	private final MetricsRegistry registry = new MetricsRegistry();
+	final Counter bytesIn = registry.counter("scaling_bytes_in_total", "Bytes read from clients");
+	final Counter bytesOut = registry.counter("scaling_bytes_out_total", "Bytes written to clients");
+	final Counter messages = registry.counter("scaling_messages_total", "Responses fully written to clients");
+	final Counter accepted = registry.counter("scaling_connections_accepted_total", "Connections accepted");
+	final Counter dropped = registry.counter("scaling_connections_dropped_total", "Connections closed or dropped");
+	final Counter rejected = registry.counter("scaling_requests_rejected_total", "Requests dropped under overload");
+	final Counter shed = registry.counter("scaling_requests_shed_total", "Queued requests shed to make room for new ones");
+	final Counter overloadPauses = registry.counter("scaling_overload_pauses_total", "Times a connection stopped being read because the queue was full");
+	final Counter throttled = registry.counter("scaling_rate_limit_throttles_total", "Times a connection stopped being read because it ran over its quota");
+	final Counter connectionsRejected = registry.counter("scaling_connections_rejected_total", "Connections refused at max-connections");
+	final Counter wakeups = registry.counter("scaling_selector_wakeups_total", "Selector wakeups across all reactors");
+	// Throughput of the clients over the last stats interval, set by the diagnostics thread
+	volatile double clientThroughputMean = 0;
+	volatile double clientThroughputStdDev = 0;
+
+	/**
+	 * @param cache - the response cache, or null if caching is off
+	 */
+	ServerMetrics (final TaskExecutor executor, final ResponseCache cache) {
+		registry.gauge("scaling_connections_open", "Connections currently open", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return accepted.get() - dropped.get();
+			}
+		});
+		registry.gauge("scaling_queue_depth", "Tasks waiting for a worker", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return executor.getQueueDepth();
+			}
+		});
+		registry.counter("scaling_worker_busy_seconds_total", "Time workers spent running tasks", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return executor.getServiceTimeHistogram().getTotalNanos() / 1e9;
+			}
+		});
+		registry.summary("scaling_queue_wait_seconds", "Time from a task being offered to a worker starting it",
+				executor.getQueueWaitHistogram());
+		registry.summary("scaling_service_time_seconds", "Time a worker spends running a task",
+				executor.getServiceTimeHistogram());
+		registry.gauge("scaling_client_messages_mean", "Mean messages per connection over the last stats interval",
+				new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return clientThroughputMean;
+			}
+		});
+		registry.gauge("scaling_client_messages_stddev", "Std. dev. of messages per connection over the last stats interval",
+				new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return clientThroughputStdDev;
+			}
+		});
+		if (cache != null) {
+			registerCache(cache);
+		}
+	}
+
+	private void registerCache (final ResponseCache cache) {
+		registry.counter("scaling_cache_hits_total", "Payloads answered from the response cache", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return cache.getHits();
+			}
+		});
+		registry.counter("scaling_cache_misses_total", "Cacheable payloads that had to be hashed", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return cache.getMisses();
+			}
+		});
+		registry.counter("scaling_cache_evictions_total", "Entries evicted from the response cache", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return cache.getEvictions();
+			}
+		});
+		registry.counter("scaling_cache_collisions_total", "Fingerprint matches whose payload differed", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return cache.getCollisions();
+			}
+		});
+		registry.gauge("scaling_cache_entries", "Entries held by the response cache", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return cache.size();
+			}
+		});
+	}
+
+	public MetricsRegistry getRegistry() {
+		return registry;
+	}
+}
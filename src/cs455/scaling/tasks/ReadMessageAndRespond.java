@@ -1,65 +1,111 @@
 package cs455.scaling.tasks;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.protocol.Message;
+import cs455.scaling.protocol.WireFormat;
 import cs455.scaling.server.ClientConnection;
+import cs455.scaling.util.MessageHasher;
+import cs455.scaling.util.ResponseCache;
 
+/**
+ * Hashes a message the reactor has finished reading, and writes back the hash.
+ * With a response cache a payload the server has seen before is answered without hashing it again.
+ * If the socket can not take the whole response right away the rest is left to the reactor,
+ * which flushes it once the socket is writable.
+ */
 public class ReadMessageAndRespond extends Task {
-	private final int KB = 1000;
 	private ClientConnection client;
-	private SelectionKey key;
+	private Message message;
 
-	public ReadMessageAndRespond(SelectionKey key) {
-		this.client = (ClientConnection) key.attachment();
-		this.key = key;
+	public ReadMessageAndRespond(ClientConnection client, Message message) {
+		this.client = client;
+		this.message = message;
 	}
-	
-	private ByteBuffer readMessage() throws IOException {
-		int read = 0;
-		// Specific to the assignment: 
-		// The client sends a byte[] to the server. The size of this array is 8 KB
-		ByteBuffer buffer = ByteBuffer.allocate(8 * KB);
-		while (buffer.hasRemaining() && read != -1) {
-			read = client.getSocket().read(buffer);
-		}
-		return buffer;
+
+	@Override
+	public void run() {
+		hashAndRespond(client, message);
 	}
 	
 	/**
-	 * Algorithm from assignment page:
-	 * https://www.cs.colostate.edu/~cs455/CS455-Spring18-HW2-PC.pdf
+	 * A request that will never be hashed, because it was rejected or cancelled, is answered
+	 * as dropped, which also releases its payload
 	 */
-	private byte[] SHA1FromBytes(byte[] data) throws NoSuchAlgorithmException {
-		 MessageDigest digest = MessageDigest.getInstance("SHA1");
-		 return digest.digest(data);
+	@Override
+	protected void onDiscard() {
+		client.reject(message);
 	}
-
+	
+	public ClientConnection getClient() {
+		return client;
+	}
+	
 	@Override
-	public void run() {
+	public Object getFlowKey() {
+		return client;
+	}
+	
+	@Override
+	public int getFlowWeight() {
+		return client.getSchedulingWeight();
+	}
+	
+	/**
+	 * Hashes a complete message with the client's hash function, and writes back the hash
+	 * framed in the client's format. A streamed message arrives already hashed.
+	 * Shared by the single message task, the batch task and the blocking per connection handler.
+	 */
+	public static void hashAndRespond(ClientConnection client, Message message) {
+		hashAndRespond(client, message, true);
+	}
+	
+	/**
+	 * @param flush - false to only queue the response, so a batch can write all of a client's
+	 * 		responses at once. The caller must then call flushResponses for the client.
+	 */
+	public static void hashAndRespond(ClientConnection client, Message message, boolean flush) {
 		if (client.isDead()) {
+			message.release();
 			return;
 		}
-		try {
-			ByteBuffer msg = readMessage();
-			ByteBuffer response = ByteBuffer.wrap(SHA1FromBytes(msg.array()));
-			while (response.hasRemaining()) {
-				client.getSocket().write(response);
+		// The hash the message was read under, a HELLO since then only applies to later messages
+		HashFunction function = message.getHashFunction();
+		ByteBuffer response = client.acquireResponseBuffer();
+		client.getFormat().writeHeader(response, WireFormat.TYPE_RESPONSE,
+				message.getRequestId(), function.getDigestLength());
+		if (message.getDigest() != null) {
+			response.put(message.getDigest());
+		} else {
+			try {
+				ResponseCache cache = client.getResponseCache();
+				if (cache != null) {
+					cache.hash(function, message.getPayload(), response);
+				} else {
+					MessageHasher.hash(function, message.getPayload(), response);
+				}
+			} finally {
+				message.release();
 			}
-			client.incrementThroughput();
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
+		}
+		response.flip();
+		client.queueResponse(response);
+		if (flush) {
+			flushResponses(client);
+		}
+	}
+	
+	/**
+	 * Writes whatever responses the client has queued, and drops the client if the socket fails
+	 */
+	public static void flushResponses(ClientConnection client) {
+		try {
+			client.flush();
 		} catch (IOException e) {
 			System.err.println("Failed to operate on socket: " + e.getMessage());
 			System.err.println("Dropping client: " + client.getClientIP());
-			client.setIsDead(true);
-			key.cancel();
-		} finally {
-			client.setIsReading(false);
+			client.close();
 		}
 	}
 }
@@ -0,0 +1,69 @@
+package cs455.scaling.tasks;
+
+import cs455.scaling.protocol.Message;
+import cs455.scaling.server.ClientConnection;
+
+/**
+ * A group of completed messages that one worker drains in a single task.
+ * Each message is hashed as a ReadMessageAndRespond would, but responses are only queued
+ * until the whole batch is done, so a client with several messages in the batch gets all of
+ * its responses in one write.
+ * @author Brandt Reutimann
+ */
+public class ReadMessageBatch extends Task {
+	private final ClientConnection [] clients;
+	private final Message [] messages;
+	private int count = 0;
+	private final long createdAt = System.currentTimeMillis();
+	
+	public ReadMessageBatch(int capacity) {
+		this.clients = new ClientConnection [capacity];
+		this.messages = new Message [capacity];
+	}
+	
+	/**
+	 * @return true if the batch has reached its capacity
+	 */
+	public boolean add(ClientConnection client, Message message) {
+		clients[count] = client;
+		messages[count++] = message;
+		return isFull();
+	}
+	
+	public boolean isFull() {
+		return count == clients.length;
+	}
+	
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * @return time the first message joined the batch
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public ClientConnection getClient(int i) {
+		return clients[i];
+	}
+	
+	@Override
+	protected void onDiscard() {
+		for (int i = 0; i < count; i++) {
+			clients[i].reject(messages[i]);
+		}
+	}
+
+	@Override
+	public void run() {
+		for (int i = 0; i < count; i++) {
+			ReadMessageAndRespond.hashAndRespond(clients[i], messages[i], false);
+		}
+		// A client already flushed has nothing queued, so repeats cost nothing
+		for (int i = 0; i < count; i++) {
+			ReadMessageAndRespond.flushResponses(clients[i]);
+		}
+	}
+}
@@ -1,34 +1,305 @@
 package cs455.scaling.tasks;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
+import cs455.scaling.concurrent.TaskExecutor;
+
+// A unit of work for an executor, and the handle to its completion. A task completes once:
+// it succeeds after running, fails if it throws or is rejected, or is cancelled before it starts.
+// Callbacks run on the thread that completes the task, or right away if it is already complete.
+// Nothing is allocated to complete a task nobody listens to.
 public abstract class Task implements Runnable {
-	protected AtomicBoolean finished = new AtomicBoolean(false);
-	// Returns true if this task has completed
+	// Told once a task completes, however it completes
+	public interface Callback {
+		void onComplete(Task task);
+	}
+
+	private static final int PENDING = 0;
+	// Taken by the one thread that will complete the task
+	private static final int CLAIMED = 1;
+	private static final int SUCCEEDED = 2;
+	private static final int FAILED = 3;
+	private static final int CANCELLED = 4;
+	private static final AtomicIntegerFieldUpdater<Task> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+	private static final AtomicReferenceFieldUpdater<Task, CallbackNode> CALLBACKS =
+			AtomicReferenceFieldUpdater.newUpdater(Task.class, CallbackNode.class, "callbacks");
+	// Callbacks of a completed task, so callbacks added later run right away
+	private static final CallbackNode COMPLETED = new CallbackNode(null, null);
+	// Shared so shedding under overload does not allocate
+	private static final RejectedExecutionException REJECTED =
+			new RejectedExecutionException("Task was rejected, the executor was full or not running");
+	private static final CancellationException CANCELLATION = new CancellationException("Task was cancelled");
+	private volatile int state = PENDING;
+	// Newest first
+	private volatile CallbackNode callbacks;
+	// Written before the state is, and only read once the state says the task is complete
+	private Object result;
+	private Throwable failure;
+	// When the task was handed to an executor, published to the worker by the executor's queue
+	private long enqueuedAt;
+
+	private static class CallbackNode {
+		final Callback callback;
+		CallbackNode next;
+		// Set by a waiter that gave up, the callback is skipped and the node unlinked once it is the head
+		volatile boolean detached;
+
+		CallbackNode (Callback callback, CallbackNode next) {
+			this.callback = callback;
+			this.next = next;
+		}
+	}
+
+	// Stamps the task as it is offered, for the queue wait time
+	public void markEnqueued() {
+		enqueuedAt = System.nanoTime();
+	}
+
+	public long getEnqueuedAt() {
+		return enqueuedAt;
+	}
+
+	// Called by executors in place of run. Runs the task unless it was cancelled, and completes it
+	// with what call returns or throws. Returns false if the task threw.
+	public final boolean execute() {
+		if (!STATE.compareAndSet(this, PENDING, CLAIMED)) {
+			return true;
+		}
+		Object value;
+		try {
+			value = call();
+		} catch (Throwable e) {
+			complete(FAILED, null, e);
+			return false;
+		}
+		complete(SUCCEEDED, value, null);
+		return true;
+	}
+
+	// The work of the task, returning its result. Runs run by default, with no result.
+	protected Object call() throws Exception {
+		run();
+		return null;
+	}
+
+	// Returns true if this task has completed, however it completed
 	public boolean isFinished() {
-		return finished.get();
+		return state > CLAIMED;
+	}
+
+	public boolean isSucceeded() {
+		return state == SUCCEEDED;
+	}
+
+	public boolean isCancelled() {
+		return state == CANCELLED;
+	}
+
+	// What the task threw, why it was rejected, or that it was cancelled. Null unless it failed or was cancelled.
+	public Throwable getFailure() {
+		return state > SUCCEEDED ? failure : null;
 	}
-	
-	// Marks the task as finished
-	public void setFinished() {
-		synchronized (finished) {
-			finished.set(true);
-			finished.notify();
+
+	// What call returned, null until the task succeeds
+	protected Object getResult() {
+		return state == SUCCEEDED ? result : null;
+	}
+
+	// Tasks with the same key are one flow to a fair scheduler, which shares the workers
+	// between flows. Tasks that do not serve a single client return null.
+	public Object getFlowKey() {
+		return null;
+	}
+
+	// How many tasks the task's flow may run per turn under fair scheduling
+	public int getFlowWeight() {
+		return 1;
+	}
+
+	// Called instead of run when the server sheds the task under overload, or the executor is not
+	// running. Does nothing if the task already started or completed, so it is settled only once.
+	public final void reject() {
+		discard(FAILED, REJECTED);
+	}
+
+	// Stops the task from running if it has not started. A running task is left to finish.
+	// Returns true if this call cancelled the task.
+	public boolean cancel() {
+		return discard(CANCELLED, CANCELLATION);
+	}
+
+	// Called once if the task will never run, because it was rejected, cancelled, or a stage before
+	// it failed. Tasks that hold pooled buffers, or owe a client an answer, settle that here.
+	protected void onDiscard() {
+	}
+
+	// Completes the task without running it unless it has started
+	private boolean discard(int outcome, Throwable cause) {
+		if (!STATE.compareAndSet(this, PENDING, CLAIMED)) {
+			return false;
+		}
+		try {
+			onDiscard();
+		} finally {
+			complete(outcome, null, cause);
 		}
+		return true;
 	}
-	
-	// Waits for the task to finish
+
+	private void complete(int outcome, Object value, Throwable cause) {
+		result = value;
+		failure = cause;
+		state = outcome;
+		CallbackNode head = CALLBACKS.getAndSet(this, COMPLETED);
+		// Reverse the list, so callbacks run in the order they were added
+		CallbackNode ordered = null;
+		while (head != null) {
+			CallbackNode next = head.next;
+			head.next = ordered;
+			ordered = head;
+			head = next;
+		}
+		for (; ordered != null; ordered = ordered.next) {
+			if (!ordered.detached) {
+				runCallback(ordered.callback);
+			}
+		}
+	}
+
+	private void runCallback(Callback callback) {
+		try {
+			callback.onComplete(this);
+		} catch (RuntimeException e) {
+			System.err.println("Task callback failed: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	// Runs callback once the task completes, right away if it already has
+	public Task whenComplete(Callback callback) {
+		push(callback);
+		return this;
+	}
+
+	// Returns the node holding callback, or null if the task had completed and callback already ran
+	private CallbackNode push(Callback callback) {
+		CallbackNode node = null;
+		while (true) {
+			CallbackNode head = callbacks;
+			if (head == COMPLETED) {
+				runCallback(callback);
+				return null;
+			}
+			if (node == null) {
+				node = new CallbackNode(callback, head);
+			} else {
+				node.next = head;
+			}
+			if (CALLBACKS.compareAndSet(this, head, node)) {
+				return node;
+			}
+		}
+	}
+
+	// Takes back a callback that is no longer wanted. Only nodes at the head are unlinked, which is
+	// safe against pushes and completion, and a waiter that polls finds its own node there.
+	private void detach(CallbackNode node) {
+		node.detached = true;
+		CallbackNode head;
+		while ((head = callbacks) != null && head != COMPLETED && head.detached) {
+			CALLBACKS.compareAndSet(this, head, head.next);
+		}
+	}
+
+	// Offers next to the executor once this task succeeds, or runs it on the completing thread when
+	// the executor is null. If this task fails or is cancelled so does next, without running, and a
+	// full executor rejects next. Returns next, so stages can be chained.
+	public <T extends Task> T then(final TaskExecutor executor, final T next) {
+		whenComplete(new Callback() {
+			@Override
+			public void onComplete(Task task) {
+				if (task.isCancelled()) {
+					next.cancel();
+				} else if (!task.isSucceeded()) {
+					((Task) next).discard(FAILED, task.getFailure());
+				} else if (executor == null) {
+					next.execute();
+				} else if (!executor.tryOfferTask(next)) {
+					next.reject();
+				}
+			}
+		});
+		return next;
+	}
+
+	// Waits for the task to finish. Parks instead of holding a monitor, so a virtual
+	// thread waiting here releases its carrier thread.
 	public void waitOnTaskFinished() {
-		synchronized (finished) {
-			try {
-				// Don't wait on the task if it is already done
-				if (isFinished()) {
-					return;
+		await();
+	}
+
+	// Waits for the task to finish with no time limit.
+	// Returns false if the thread was interrupted first, which is left set.
+	public boolean await() {
+		return await(false, 0);
+	}
+
+	// Waits at most timeout for the task to finish, a timeout of 0 or less only checks.
+	// Returns false if it has not finished by then, or the thread was interrupted, which is left set.
+	public boolean await(long timeout, TimeUnit unit) {
+		return await(true, unit.toNanos(timeout));
+	}
+
+	private boolean await(boolean timed, long nanos) {
+		// Don't wait on the task if it is already done
+		if (isFinished()) {
+			return true;
+		}
+		if (timed && nanos <= 0) {
+			return false;
+		}
+		final Thread waiter = Thread.currentThread();
+		// Added before checking again, so a finish in between is not missed
+		CallbackNode node = push(new Callback() {
+			@Override
+			public void onComplete(Task task) {
+				LockSupport.unpark(waiter);
+			}
+		});
+		long deadline = System.nanoTime() + nanos;
+		while (!isFinished()) {
+			if (!timed) {
+				LockSupport.park(this);
+			} else {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					break;
 				}
-				finished.wait();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				LockSupport.parkNanos(this, remaining);
 			}
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
+		}
+		if (isFinished()) {
+			return true;
 		}
+		// Giving up, so repeated polls do not pile their callbacks onto the task
+		detach(node);
+		return false;
+	}
+
+	// Makes a completed task pending again, so it can be offered again. Only for tasks nobody waits on.
+	protected void reset() {
+		result = null;
+		failure = null;
+		callbacks = null;
+		state = PENDING;
 	}
 }
@@ -0,0 +1,80 @@
+package cs455.scaling.tasks;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A task that computes a value. The value, or what the computation threw, is delivered to
+ * callbacks and to whoever waits on the task, like a Future.
+ * @author Brandt Reutimann
+ */
+public abstract class ValueTask<T> extends Task {
+
+	/**
+	 * The work of the task
+	 * @return the task's result
+	 */
+	protected abstract T compute() throws Exception;
+
+	@Override
+	protected final Object call() throws Exception {
+		return compute();
+	}
+
+	/**
+	 * Computes the value on the calling thread, as an executor would
+	 */
+	@Override
+	public final void run() {
+		execute();
+	}
+
+	/**
+	 * @return the value, or null until the task succeeds
+	 */
+	@SuppressWarnings("unchecked")
+	public T getNow() {
+		return (T) getResult();
+	}
+
+	/**
+	 * Waits for the task to complete
+	 * @return the value
+	 * @throws ExecutionException if the task threw or was rejected
+	 * @throws CancellationException if the task was cancelled
+	 */
+	public T get() throws ExecutionException, InterruptedException {
+		if (!await()) {
+			// Cleared as it is reported, like Future.get, so the caller can wait again
+			Thread.interrupted();
+			throw new InterruptedException("Interrupted while waiting on task");
+		}
+		return report();
+	}
+
+	/**
+	 * Waits at most timeout for the task to complete, a timeout of 0 or less only checks
+	 * @throws TimeoutException if it has not completed by then
+	 */
+	public T get(long timeout, TimeUnit unit) throws ExecutionException, TimeoutException, InterruptedException {
+		if (!await(timeout, unit)) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException("Interrupted while waiting on task");
+			}
+			throw new TimeoutException("Task did not finish in " + timeout + " " + unit);
+		}
+		return report();
+	}
+
+	private T report() throws ExecutionException {
+		if (isCancelled()) {
+			throw new CancellationException("Task was cancelled");
+		}
+		if (getFailure() != null) {
+			throw new ExecutionException(getFailure());
+		}
+		return getNow();
+	}
+}
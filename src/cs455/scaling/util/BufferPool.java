@@ -0,0 +1,190 @@
+package cs455.scaling.util;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.concurrent.MpmcRingQueue;
+
+/**
+ * A pool of fixed size direct byte buffers.
+ * Each thread keeps a small cache of free buffers, and spills to a shared ring when its
+ * cache is full, so a buffer acquired on one thread may be released on another.
+ * At most maxBuffers direct buffers are ever allocated. Once they are all in use acquire
+ * falls back to a plain heap buffer, which is simply dropped on release.
+ * @author Brandt Reutimann
+ */
+public class BufferPool {
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final int threadCacheSize;
+	private final ThreadLocal<ArrayDeque<ByteBuffer>> threadCache;
+	private final MpmcRingQueue<ByteBuffer> sharedPool;
+	private final AtomicInteger allocated = new AtomicInteger(0);
+	private final AtomicLong outstanding = new AtomicLong(0);
+	// Counters
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+	// Acquire site of every outstanding buffer, only kept when leak detection is on
+	private final Map<ByteBuffer, Throwable> leakTracker;
+
+	public BufferPool (int bufferSize, int maxBuffers) {
+		this(bufferSize, maxBuffers, 16, false);
+	}
+
+	/**
+	 * @param bufferSize - capacity of each buffer in bytes
+	 * @param maxBuffers - upper bound on direct buffers, bufferSize * maxBuffers is the pool's footprint
+	 * @param threadCacheSize - free buffers each thread holds on to before spilling to the shared pool
+	 * @param leakDetection - remember where each buffer was acquired, costs an allocation per acquire
+	 */
+	public BufferPool (int bufferSize, int maxBuffers, int threadCacheSize, boolean leakDetection) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+		this.threadCacheSize = threadCacheSize;
+		this.sharedPool = new MpmcRingQueue<ByteBuffer>(maxBuffers);
+		this.threadCache = new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+			@Override
+			protected ArrayDeque<ByteBuffer> initialValue() {
+				return new ArrayDeque<ByteBuffer>(BufferPool.this.threadCacheSize);
+			}
+		};
+		if (leakDetection) {
+			this.leakTracker = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>());
+		} else {
+			this.leakTracker = null;
+		}
+	}
+
+	/**
+	 * @return a cleared buffer of bufferSize bytes, must be handed back with release
+	 */
+	public ByteBuffer acquire () {
+		ByteBuffer buffer = threadCache.get().pollFirst();
+		if (buffer == null) {
+			buffer = sharedPool.poll();
+		}
+		if (buffer != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+			buffer = allocate();
+		}
+		outstanding.incrementAndGet();
+		if (leakTracker != null) {
+			leakTracker.put(buffer, new Throwable("Buffer acquired here"));
+		}
+		return buffer;
+	}
+
+	private ByteBuffer allocate () {
+		while (true) {
+			int count = allocated.get();
+			if (count >= maxBuffers) {
+				overflows.increment();
+				return ByteBuffer.allocate(bufferSize);
+			}
+			if (allocated.compareAndSet(count, count + 1)) {
+				return ByteBuffer.allocateDirect(bufferSize);
+			}
+		}
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not touch the buffer afterwards.
+	 */
+	public void release (ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (leakTracker != null && leakTracker.remove(buffer) == null) {
+			System.err.println("BufferPool: released a buffer that was not acquired, or released twice");
+			new Throwable().printStackTrace();
+			return;
+		}
+		outstanding.decrementAndGet();
+		if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+			return;		// Overflow buffer, let the GC have it
+		}
+		buffer.clear();
+		ArrayDeque<ByteBuffer> cache = threadCache.get();
+		if (cache.size() < threadCacheSize) {
+			cache.addFirst(buffer);
+		} else if (!sharedPool.offer(buffer)) {
+			allocated.decrementAndGet();
+		}
+	}
+
+	public int getBufferSize () {
+		return bufferSize;
+	}
+
+	/**
+	 * @return acquires served by a free buffer
+	 */
+	public long getHits () {
+		return hits.sum();
+	}
+
+	/**
+	 * @return acquires that had to allocate, including overflows
+	 */
+	public long getMisses () {
+		return misses.sum();
+	}
+
+	/**
+	 * @return acquires that found the pool at its bound and got a heap buffer
+	 */
+	public long getOverflows () {
+		return overflows.sum();
+	}
+
+	/**
+	 * @return buffers acquired and not yet released
+	 */
+	public long getOutstanding () {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return direct buffers currently owned by the pool, free or in use
+	 */
+	public int getAllocated () {
+		return allocated.get();
+	}
+
+	/**
+	 * Prints the acquire site of every outstanding buffer. Only available with leak detection.
+	 * @return number of outstanding buffers reported
+	 */
+	public int reportLeaks (PrintStream out) {
+		if (leakTracker == null) {
+			out.println("BufferPool: leak detection is disabled");
+			return 0;
+		}
+		List<Throwable> sites;
+		synchronized (leakTracker) {
+			sites = new ArrayList<Throwable>(leakTracker.values());
+		}
+		for (Throwable site : sites) {
+			site.printStackTrace(out);
+		}
+		return sites.size();
+	}
+
+	@Override
+	public String toString () {
+		return String.format("BufferPool[size=%d, allocated=%d/%d, outstanding=%d, hits=%d, misses=%d, overflows=%d]",
+				bufferSize, getAllocated(), maxBuffers, getOutstanding(), getHits(), getMisses(), getOverflows());
+	}
+}
@@ -0,0 +1,186 @@
+package cs455.scaling.util;
+
+/**
+ * A hashed timer wheel for scheduling many short timeouts from a single selector thread.
+ * Time is cut into fixed ticks and a timeout lives in the bucket of the tick it expires on,
+ * so scheduling and cancelling are O(1) no matter how many timeouts are pending. A timeout
+ * more than a full turn of the wheel away waits out the extra turns in its bucket.
+ *
+ * Timeouts fire from advance, up to one tick late. Not thread safe, the wheel belongs to
+ * the thread that advances it.
+ * @author Brandt Reutimann
+ */
+public class HashedTimerWheel {
+	private final long tickNanos;
+	private final int mask;
+	// Head of a doubly linked list of timeouts per bucket
+	private final Timeout [] buckets;
+	// The next tick to expire, and when it is due
+	private long currentTick = 0;
+	private long nextTickAt;
+	private final long startedAt;
+	private int size = 0;
+
+	/**
+	 * @param tickNanos - resolution of the wheel
+	 * @param wheelSize - buckets per turn, rounded up to a power of two
+	 */
+	public HashedTimerWheel (long tickNanos, int wheelSize) {
+		int buckets = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+		this.tickNanos = tickNanos;
+		this.mask = buckets - 1;
+		this.buckets = new Timeout [buckets];
+		this.startedAt = System.nanoTime();
+		this.nextTickAt = startedAt + tickNanos;
+	}
+
+	/**
+	 * Runs task once delayNanos have passed
+	 */
+	public Timeout schedule (Runnable task, long delayNanos) {
+		return scheduleAt(task, System.nanoTime() + delayNanos);
+	}
+
+	/**
+	 * Runs task once System.nanoTime() reaches deadline. A deadline in the past fires on the next tick.
+	 */
+	public Timeout scheduleAt (Runnable task, long deadline) {
+		Timeout timeout = new Timeout(this, task, deadline);
+		insert(timeout);
+		return timeout;
+	}
+
+	private void insert (Timeout timeout) {
+		long ticks = Math.max((timeout.deadline - startedAt) / tickNanos, currentTick);
+		timeout.rounds = (ticks - currentTick) / buckets.length;
+		int index = (int) (ticks & mask);
+		timeout.bucket = index;
+		timeout.prev = null;
+		timeout.next = buckets[index];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		buckets[index] = timeout;
+		size++;
+	}
+
+	private void unlink (Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.next = null;
+		timeout.prev = null;
+		size--;
+	}
+
+	/**
+	 * Expires every tick up to now and runs the timeouts that are due.
+	 * A task may schedule new timeouts, which fire no earlier than the next tick.
+	 * @return number of tasks run
+	 */
+	public int advance (long now) {
+		int fired = 0;
+		while (nextTickAt <= now) {
+			int index = (int) (currentTick & mask);
+			currentTick++;
+			nextTickAt += tickNanos;
+			// Collect what is due before running anything, a task may cancel other timeouts
+			Timeout due = null;
+			Timeout timeout = buckets[index];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.rounds > 0) {
+					timeout.rounds--;
+				} else {
+					unlink(timeout);
+					timeout.bucket = -1;
+					timeout.next = due;
+					due = timeout;
+				}
+				timeout = next;
+			}
+			while (due != null) {
+				Timeout next = due.next;
+				due.next = null;
+				if (!due.cancelled) {
+					due.expired = true;
+					due.task.run();
+					fired++;
+				}
+				due = next;
+			}
+		}
+		return fired;
+	}
+
+	/**
+	 * @return nanoseconds until the next tick is due, 0 if it is overdue
+	 */
+	public long nanosUntilNextTick (long now) {
+		return Math.max(0, nextTickAt - now);
+	}
+
+	/**
+	 * @return timeouts that have neither fired nor been cancelled
+	 */
+	public int size () {
+		return size;
+	}
+
+	public boolean isEmpty () {
+		return size == 0;
+	}
+
+	/**
+	 * Handle to a scheduled task
+	 */
+	public static final class Timeout {
+		private final HashedTimerWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private int bucket;
+		private Timeout next;
+		private Timeout prev;
+		private boolean expired = false;
+		private boolean cancelled = false;
+
+		private Timeout (HashedTimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public long getDeadline () {
+			return deadline;
+		}
+
+		/**
+		 * Must be called from the thread that owns the wheel
+		 * @return false if the task already ran or was cancelled
+		 */
+		public boolean cancel () {
+			if (expired || cancelled) {
+				return false;
+			}
+			cancelled = true;
+			if (bucket >= 0) {
+				wheel.unlink(this);
+			}
+			return true;
+		}
+
+		public boolean isCancelled () {
+			return cancelled;
+		}
+
+		public boolean isExpired () {
+			return expired;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ * Every power of two range is split into 32 linear sub-buckets, so any recorded value is
+ * reported within about 3% of its true value. Values up to an hour are tracked, larger ones
+ * land in the last bucket, and the exact max is kept on the side.
+ *
+ * Recording is a single atomic increment and never blocks. A snapshot that resets the
+ * histogram swaps each bucket out atomically, so concurrent records count towards either
+ * the old interval or the new one, never neither. A running count and sum are kept apart
+ * from the buckets and are never reset.
+ * @author Brandt Reutimann
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final long MAX_TRACKABLE = 3600L * 1000000000L;
+	private static final int BUCKETS = indexOf(MAX_TRACKABLE) + 1;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong(0);
+	private final LongAdder totalCount = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+
+	/**
+	 * Values below 32 get a bucket each, above that a bucket holds the values that share
+	 * their highest bit and the 5 bits after it
+	 */
+	private static int indexOf (long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + mantissa;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	private static long highestValueIn (int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long mantissa = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long lowest = (1L << exponent) | (mantissa << (exponent - SUB_BUCKET_BITS));
+		return lowest + width - 1;
+	}
+
+	/**
+	 * Records one latency, negative values count as 0
+	 */
+	public void record (long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(indexOf(Math.min(nanos, MAX_TRACKABLE)));
+		totalCount.increment();
+		totalNanos.add(nanos);
+		long current;
+		while (nanos > (current = max.get())) {
+			if (max.compareAndSet(current, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return values recorded since the histogram was created, resets do not affect it
+	 */
+	public long getTotalCount () {
+		return totalCount.sum();
+	}
+
+	/**
+	 * @return sum of the values recorded since the histogram was created
+	 */
+	public long getTotalNanos () {
+		return totalNanos.sum();
+	}
+
+	/**
+	 * @return the counts recorded since the last reset
+	 */
+	public Snapshot snapshot () {
+		long [] copy = new long [BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, max.get());
+	}
+
+	/**
+	 * @return the counts recorded since the last reset, and starts a new interval
+	 */
+	public Snapshot snapshotAndReset () {
+		long [] copy = new long [BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.getAndSet(i, 0);
+		}
+		return new Snapshot(copy, max.getAndSet(0));
+	}
+
+	/**
+	 * An immutable copy of the histogram
+	 */
+	public static class Snapshot {
+		private final long [] counts;
+		private final long max;
+		private final long count;
+
+		private Snapshot (long [] counts, long max) {
+			this.counts = counts;
+			this.max = max;
+			long total = 0;
+			for (long c : counts) {
+				total += c;
+			}
+			this.count = total;
+		}
+
+		public long getCount () {
+			return count;
+		}
+
+		public long getMax () {
+			return max;
+		}
+
+		/**
+		 * @param percentile - between 0 and 100
+		 * @return the value at or below which percentile percent of the recorded values fall, 0 if empty
+		 */
+		public long getValueAtPercentile (double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					// The last bucket also holds everything past the trackable range
+					return i == counts.length - 1 ? max : Math.min(highestValueIn(i), max);
+				}
+			}
+			return max;
+		}
+
+		public double getMean () {
+			if (count == 0) {
+				return 0;
+			}
+			double sum = 0;
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] != 0) {
+					sum += (double) counts[i] * highestValueIn(i);
+				}
+			}
+			return sum / count;
+		}
+
+		/**
+		 * @return the usual percentiles in milliseconds, on one line
+		 */
+		@Override
+		public String toString () {
+			return String.format("p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f ms (n=%d)",
+					getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6,
+					getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6, max / 1e6, count);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+
+import cs455.scaling.hash.Digest;
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+
+/**
+ * Hashing without a provider lookup or allocation per message.
+ * Every thread that hashes keeps its own digest for each function, see HashFunction.threadDigest.
+ * @author Brandt Reutimann
+ */
+public final class MessageHasher {
+	public static final int SHA1_LENGTH = 20;
+	
+	private MessageHasher() {}
+	
+	/**
+	 * Hashes the remaining bytes of data, which may be a direct buffer, and puts the
+	 * hash at the position of out. Both positions are advanced.
+	 */
+	public static void hash(HashFunction function, ByteBuffer data, ByteBuffer out) {
+		Digest digest = function.threadDigest();
+		digest.update(data);
+		digest.finish(out);
+	}
+	
+	/**
+	 * Hashes the remaining bytes of data into a new array. Allocates, so keep it off hot paths.
+	 */
+	public static byte [] hash(HashFunction function, ByteBuffer data) {
+		byte [] hash = new byte [function.getDigestLength()];
+		hash(function, data, ByteBuffer.wrap(hash));
+		return hash;
+	}
+	
+	/**
+	 * Hashes the remaining bytes of data with SHA-1 and puts the 20 byte hash at the position of out.
+	 */
+	public static void SHA1(ByteBuffer data, ByteBuffer out) {
+		hash(HashFunctions.SHA1, data, out);
+	}
+	
+	/**
+	 * Hashes the remaining bytes of data with SHA-1 into a new array.
+	 */
+	public static byte [] SHA1(ByteBuffer data) {
+		return hash(HashFunctions.SHA1, data);
+	}
+}
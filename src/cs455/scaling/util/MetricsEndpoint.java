@@ -0,0 +1,154 @@
+package cs455.scaling.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Serves a MetricsRegistry over HTTP in the Prometheus text format, from one selector thread.
+ * Any GET is answered with every metric and the connection is closed afterwards, which is all
+ * a scraper needs, so there is no real HTTP parsing beyond finding the end of the headers.
+ * @author Brandt Reutimann
+ */
+public class MetricsEndpoint implements Runnable {
+	// Longest request we wait for, a scraper's GET is far shorter
+	private static final int MAX_REQUEST = 8192;
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private final MetricsRegistry registry;
+	private final Selector selector;
+	private final ServerSocketChannel serversocket;
+	private volatile boolean stopped = false;
+
+	public MetricsEndpoint (MetricsRegistry registry, int port) throws IOException {
+		this.registry = registry;
+		this.selector = Selector.open();
+		this.serversocket = ServerSocketChannel.open();
+		serversocket.bind(new InetSocketAddress(port));
+		serversocket.configureBlocking(false);
+		serversocket.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Per connection state, the request read so far and then the response being written
+	 */
+	private static class Exchange {
+		ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+		ByteBuffer response;
+	}
+
+	/**
+	 * Stops serving and closes the port. Safe to call from any thread.
+	 */
+	public void stop () {
+		stopped = true;
+		selector.wakeup();
+	}
+
+	private void accept () throws IOException {
+		SocketChannel scraper = serversocket.accept();
+		if (scraper == null) {
+			return;
+		}
+		scraper.configureBlocking(false);
+		scraper.register(selector, SelectionKey.OP_READ, new Exchange());
+	}
+
+	private void read (SelectionKey key) throws IOException {
+		Exchange exchange = (Exchange) key.attachment();
+		SocketChannel scraper = (SocketChannel) key.channel();
+		if (scraper.read(exchange.request) == -1) {
+			close(key);
+			return;
+		}
+		String request = new String(exchange.request.array(), 0, exchange.request.position(), StandardCharsets.US_ASCII);
+		if (!request.contains("\r\n\r\n") && !request.contains("\n\n")) {
+			if (!exchange.request.hasRemaining()) {
+				respond(key, exchange, "431 Request Header Fields Too Large", "");
+			}
+			return;
+		}
+		if (request.startsWith("GET ")) {
+			StringBuilder body = new StringBuilder(4096);
+			registry.writeTo(body);
+			respond(key, exchange, "200 OK", body.toString());
+		} else {
+			respond(key, exchange, "405 Method Not Allowed", "");
+		}
+	}
+
+	private void respond (SelectionKey key, Exchange exchange, String status, String body) throws IOException {
+		byte [] content = body.getBytes(StandardCharsets.UTF_8);
+		String head = "HTTP/1.1 " + status + "\r\nContent-Type: " + CONTENT_TYPE
+				+ "\r\nContent-Length: " + content.length + "\r\nConnection: close\r\n\r\n";
+		byte [] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+		exchange.response = ByteBuffer.allocate(headBytes.length + content.length);
+		exchange.response.put(headBytes).put(content).flip();
+		key.interestOps(SelectionKey.OP_WRITE);
+		write(key);
+	}
+
+	private void write (SelectionKey key) throws IOException {
+		Exchange exchange = (Exchange) key.attachment();
+		((SocketChannel) key.channel()).write(exchange.response);
+		if (!exchange.response.hasRemaining()) {
+			close(key);
+		}
+	}
+
+	private void close (SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			System.err.println("Failed to close metrics connection: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void run () {
+		while (!stopped) {
+			try {
+				selector.select();
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else if (key.isReadable()) {
+							read(key);
+						} else if (key.isWritable()) {
+							write(key);
+						}
+					} catch (IOException e) {
+						// A failed accept leaves the listening socket alone
+						if (key.channel() instanceof SocketChannel) {
+							close(key);
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Metrics endpoint select operation failed: " + e.getMessage());
+				break;
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			close(key);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close metrics endpoint: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package cs455.scaling.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A set of named metrics that can be written out in the Prometheus text exposition format.
+ * Counters are striped (LongAdder) so hot paths on many threads can bump them without
+ * contending on one cache line. Gauges and derived counters are read through a callback at
+ * scrape time, and histograms are LatencyHistograms exported as summaries in seconds.
+ *
+ * Metrics are registered once at startup, registration is not meant to race with scrapes.
+ * @author Brandt Reutimann
+ */
+public class MetricsRegistry {
+	private static final double [] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private final List<Metric> metrics = new ArrayList<Metric>();
+
+	/**
+	 * A counter bumped directly by the code it measures
+	 */
+	public static class Counter {
+		private final LongAdder value = new LongAdder();
+
+		public void increment () {
+			value.increment();
+		}
+
+		public void add (long amount) {
+			value.add(amount);
+		}
+
+		public long get () {
+			return value.sum();
+		}
+	}
+
+	private static class Metric {
+		final String name;
+		final String help;
+		final String type;
+		final DoubleSupplier value;
+		final LatencyHistogram histogram;
+
+		Metric (String name, String help, String type, DoubleSupplier value, LatencyHistogram histogram) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.value = value;
+			this.histogram = histogram;
+		}
+	}
+
+	/**
+	 * @param name - should end in _total, as Prometheus expects of counters
+	 */
+	public synchronized Counter counter (String name, String help) {
+		final Counter counter = new Counter();
+		metrics.add(new Metric(name, help, "counter", new DoubleSupplier() {
+			@Override
+			public double getAsDouble() {
+				return counter.get();
+			}
+		}, null));
+		return counter;
+	}
+
+	/**
+	 * A counter kept elsewhere, read at scrape time. The value must never go down.
+	 */
+	public synchronized void counter (String name, String help, DoubleSupplier value) {
+		metrics.add(new Metric(name, help, "counter", value, null));
+	}
+
+	/**
+	 * A value that may go up and down, read at scrape time
+	 */
+	public synchronized void gauge (String name, String help, DoubleSupplier value) {
+		metrics.add(new Metric(name, help, "gauge", value, null));
+	}
+
+	/**
+	 * Exports a histogram of nanoseconds as a summary in seconds. The quantiles cover what was
+	 * recorded since the histogram was last reset, the count and sum are cumulative.
+	 */
+	public synchronized void summary (String name, String help, LatencyHistogram histogram) {
+		metrics.add(new Metric(name, help, "summary", null, histogram));
+	}
+
+	/**
+	 * Appends every metric in the Prometheus text format
+	 */
+	public synchronized void writeTo (StringBuilder out) {
+		for (Metric metric : metrics) {
+			out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+			out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+			if (metric.histogram == null) {
+				out.append(metric.name).append(' ').append(format(metric.value.getAsDouble())).append('\n');
+				continue;
+			}
+			LatencyHistogram.Snapshot snapshot = metric.histogram.snapshot();
+			for (double quantile : QUANTILES) {
+				out.append(metric.name).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(format(snapshot.getValueAtPercentile(quantile * 100) / 1e9)).append('\n');
+			}
+			out.append(metric.name).append("_sum ").append(format(metric.histogram.getTotalNanos() / 1e9)).append('\n');
+			out.append(metric.name).append("_count ").append(metric.histogram.getTotalCount()).append('\n');
+		}
+	}
+
+	private static String format (double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+}
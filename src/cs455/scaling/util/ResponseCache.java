@@ -0,0 +1,252 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+import cs455.scaling.hash.HashFunction;
+import cs455.scaling.hash.HashFunctions;
+
+/**
+ * A bounded cache of digests in front of the hashing step, for clients that send the same
+ * payload more than once. Entries are found by a cheap fingerprint, the payload length and its
+ * CRC-32C, which the JVM computes with the CPU's CRC32 instructions. A fingerprint can collide,
+ * so every entry keeps a copy of its payload and a hit is only used once the payloads compare
+ * equal, which is still far cheaper than a cryptographic hash.
+ *
+ * Payload copies live in one direct buffer per segment, and everything else in primitive
+ * arrays, so the cache adds no objects per entry for the collector to trace. The cache is split
+ * into segments behind their own lock, each evicting with the CLOCK algorithm. A new entry
+ * starts unreferenced, so a payload seen only once is the first to go. Payloads over
+ * maxPayload bytes are hashed without the cache.
+ * @author Brandt Reutimann
+ */
+public class ResponseCache {
+	private static final int SEGMENTS = 16;
+	private final int maxPayload;
+	private final Segment [] segments = new Segment [SEGMENTS];
+	private final ThreadLocal<CRC32C> crcs = new ThreadLocal<CRC32C>() {
+		@Override
+		protected CRC32C initialValue() {
+			return new CRC32C();
+		}
+	};
+	// Counters
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder collisions = new LongAdder();
+
+	/**
+	 * @param entries - digests kept, entries * maxPayload bytes are allocated off heap up front
+	 * @param maxPayload - largest payload that is cached
+	 */
+	public ResponseCache (int entries, int maxPayload) {
+		this.maxPayload = maxPayload;
+		int perSegment = Math.max(1, (entries + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(perSegment, maxPayload);
+		}
+	}
+
+	/**
+	 * Puts the digest of the remaining bytes of payload at the position of out, from the cache
+	 * if it holds the same payload, otherwise by hashing it and remembering the result.
+	 * Both positions are advanced, like MessageHasher.hash.
+	 */
+	public void hash (HashFunction function, ByteBuffer payload, ByteBuffer out) {
+		int length = payload.remaining();
+		if (length > maxPayload) {
+			MessageHasher.hash(function, payload, out);
+			return;
+		}
+		int start = payload.position();
+		CRC32C crc = crcs.get();
+		crc.reset();
+		crc.update(payload);
+		payload.position(start);
+		long key = ((long) length << 32) | crc.getValue();
+		long hash = mix(key, function.getId());
+		Segment segment = segments[(int) (hash >>> 60)];
+		if (segment.get(key, function.getId(), (int) hash, payload, out, function.getDigestLength())) {
+			hits.increment();
+			payload.position(payload.limit());
+			return;
+		}
+		misses.increment();
+		int digestAt = out.position();
+		MessageHasher.hash(function, payload, out);
+		payload.position(start);
+		if (segment.put(key, function.getId(), (int) hash, payload, out, digestAt, function.getDigestLength())) {
+			evictions.increment();
+		}
+		payload.position(payload.limit());
+	}
+
+	public long getHits () {
+		return hits.sum();
+	}
+
+	public long getMisses () {
+		return misses.sum();
+	}
+
+	public long getEvictions () {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return lookups whose fingerprint matched an entry with a different payload
+	 */
+	public long getCollisions () {
+		return collisions.sum();
+	}
+
+	/**
+	 * @return entries currently held
+	 */
+	public int size () {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	private static long mix (long key, byte function) {
+		long h = key ^ ((long) function << 56);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * A fixed number of slots, found through chained buckets and evicted by a clock hand
+	 */
+	private class Segment {
+		private final int capacity;
+		private final int slotSize;
+		private final long [] keys;
+		private final byte [] functions;
+		private final int [] hashes;
+		private final byte [] digests;
+		private final boolean [] referenced;
+		// Bucket heads and the next slot in each chain, -1 ends a chain
+		private final int [] buckets;
+		private final int [] next;
+		private final int mask;
+		private final ByteBuffer payloads;
+		// Reused view of payloads, only touched under the segment's lock
+		private final ByteBuffer view;
+		private int size = 0;
+		private int hand = 0;
+
+		Segment (int capacity, int slotSize) {
+			this.capacity = capacity;
+			this.slotSize = slotSize;
+			this.keys = new long [capacity];
+			this.functions = new byte [capacity];
+			this.hashes = new int [capacity];
+			this.digests = new byte [capacity * HashFunctions.MAX_DIGEST_LENGTH];
+			this.referenced = new boolean [capacity];
+			int bucketCount = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+			this.buckets = new int [bucketCount];
+			this.mask = bucketCount - 1;
+			this.next = new int [capacity];
+			Arrays.fill(buckets, -1);
+			this.payloads = ByteBuffer.allocateDirect(capacity * slotSize);
+			this.view = payloads.duplicate();
+		}
+
+		synchronized int size () {
+			return size;
+		}
+
+		/**
+		 * @return true if the digest was found and put at the position of out
+		 */
+		synchronized boolean get (long key, byte function, int hash, ByteBuffer payload, ByteBuffer out,
+				int digestLength) {
+			for (int slot = buckets[hash & mask]; slot != -1; slot = next[slot]) {
+				if (keys[slot] != key || functions[slot] != function) {
+					continue;
+				}
+				if (payload.mismatch(stored(slot, payload.remaining())) != -1) {
+					collisions.increment();
+					continue;
+				}
+				referenced[slot] = true;
+				out.put(digests, slot * HashFunctions.MAX_DIGEST_LENGTH, digestLength);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Remembers the digest of payload, found in out at digestAt
+		 * @return true if an entry was evicted to make room
+		 */
+		synchronized boolean put (long key, byte function, int hash, ByteBuffer payload, ByteBuffer out,
+				int digestAt, int digestLength) {
+			// Another worker may have hashed the same payload in the meantime
+			for (int slot = buckets[hash & mask]; slot != -1; slot = next[slot]) {
+				if (keys[slot] == key && functions[slot] == function
+						&& payload.mismatch(stored(slot, payload.remaining())) == -1) {
+					return false;
+				}
+			}
+			boolean evicted = false;
+			int slot;
+			if (size < capacity) {
+				slot = size++;
+			} else {
+				while (referenced[hand]) {
+					referenced[hand] = false;
+					hand = (hand + 1) % capacity;
+				}
+				slot = hand;
+				hand = (hand + 1) % capacity;
+				unlink(slot);
+				evicted = true;
+			}
+			keys[slot] = key;
+			functions[slot] = function;
+			hashes[slot] = hash;
+			referenced[slot] = false;
+			for (int i = 0; i < digestLength; i++) {
+				digests[slot * HashFunctions.MAX_DIGEST_LENGTH + i] = out.get(digestAt + i);
+			}
+			view.clear();
+			view.position(slot * slotSize);
+			int start = payload.position();
+			view.put(payload);
+			payload.position(start);
+			next[slot] = buckets[hash & mask];
+			buckets[hash & mask] = slot;
+			return evicted;
+		}
+
+		private ByteBuffer stored (int slot, int length) {
+			view.clear();
+			view.position(slot * slotSize);
+			view.limit(slot * slotSize + length);
+			return view;
+		}
+
+		private void unlink (int slot) {
+			int bucket = hashes[slot] & mask;
+			if (buckets[bucket] == slot) {
+				buckets[bucket] = next[slot];
+				return;
+			}
+			for (int prev = buckets[bucket]; prev != -1; prev = next[prev]) {
+				if (next[prev] == slot) {
+					next[prev] = next[slot];
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package cs455.scaling.util;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket options shared by the server and the clients, set with --name=value flags.
+ * Buffer sizes left at 0 keep the operating system's default. Nagle's algorithm is off by
+ * default, requests and responses are small and a delayed one holds up everything behind it.
+ * @author Brandt Reutimann
+ */
+public class SocketTuning {
+	public static final String USAGE =
+			"  --tcp-nodelay=<b>       true sends small writes at once, false lets Nagle coalesce them (default true)\n"
+		+	"  --so-rcvbuf=<n>         socket receive buffer in bytes (default 0, the OS default)\n"
+		+	"  --so-sndbuf=<n>         socket send buffer in bytes (default 0, the OS default)\n"
+		+	"  --so-keepalive=<b>      send TCP keepalive probes on idle connections (default false)\n";
+	public static final String SERVER_USAGE =
+			"  --backlog=<n>           connections the kernel queues for accept (default 1024, capped by somaxconn)\n";
+
+	private boolean tcpNoDelay = true;
+	private int receiveBufferSize = 0;
+	private int sendBufferSize = 0;
+	private boolean keepAlive = false;
+	private int backlog = 1024;
+
+	/**
+	 * @return false if name is not a socket option, so the caller can try its own options
+	 * @throws IllegalArgumentException if the value is malformed
+	 */
+	public boolean setOption (String name, String value) {
+		switch (name) {
+		case "tcp-nodelay":
+			tcpNoDelay = parseBoolean(name, value);
+			return true;
+		case "so-rcvbuf":
+			receiveBufferSize = parseSize(name, value);
+			return true;
+		case "so-sndbuf":
+			sendBufferSize = parseSize(name, value);
+			return true;
+		case "so-keepalive":
+			keepAlive = parseBoolean(name, value);
+			return true;
+		case "backlog":
+			backlog = parseSize(name, value);
+			if (backlog == 0) {
+				throw new IllegalArgumentException("backlog must be at least 1");
+			}
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Applies the options to a connected or connecting socket
+	 */
+	public void applyTo (SocketChannel channel) throws IOException {
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+		channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+		if (receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		if (sendBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+	}
+
+	/**
+	 * Binds a listening socket with the configured backlog. The receive buffer is set on the
+	 * listener, before bind, so accepted sockets inherit it and can negotiate a window over 64 KB.
+	 * @param reusePort - let other sockets bind the same port, so the kernel spreads accepts over them
+	 * @throws UnsupportedOperationException if reusePort is asked for and the platform lacks SO_REUSEPORT
+	 */
+	public void bind (ServerSocketChannel channel, SocketAddress address, boolean reusePort) throws IOException {
+		if (reusePort) {
+			if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+			}
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		if (receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		channel.bind(address, backlog);
+	}
+
+	public boolean isTcpNoDelay () {
+		return tcpNoDelay;
+	}
+
+	public int getBacklog () {
+		return backlog;
+	}
+
+	private static boolean parseBoolean (String name, String value) {
+		if (value.equalsIgnoreCase("true")) {
+			return true;
+		}
+		if (value.equalsIgnoreCase("false")) {
+			return false;
+		}
+		throw new IllegalArgumentException(name + " must be true or false, got: " + value);
+	}
+
+	private static int parseSize (String name, String value) {
+		int size;
+		try {
+			size = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number, got: " + value);
+		}
+		if (size < 0) {
+			throw new IllegalArgumentException(name + " must not be negative");
+		}
+		return size;
+	}
+}
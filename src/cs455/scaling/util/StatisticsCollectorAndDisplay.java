@@ -1,60 +1,105 @@
 package cs455.scaling.util;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
 
+/**
+ * Streaming statistics over the per client throughput of one interval.
+ * Mean and variance are updated online with Welford's method as each value is accepted, and
+ * the values are kept in a primitive array that is reused across intervals for the percentiles.
+ * Nothing is boxed, and once the array has grown to the number of clients nothing is allocated.
+ * Only the diagnostics thread uses an instance, so it is not thread safe.
+ */
 public class StatisticsCollectorAndDisplay {
-	List<Double> values = new ArrayList<Double>();
+	private long [] values = new long [64];
+	private int count = 0;
+	private double sum = 0;
+	// Welford's running mean and sum of squared differences from it
+	private double mean = 0;
+	private double m2 = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = Long.MIN_VALUE;
+	private boolean sorted = true;
 	
-	public void acceptNewIntegerValues (List<Integer> values) {
-		for (Integer i : values) {
-			this.values.add(i.doubleValue());
-		}
+	/**
+	 * Starts a new interval
+	 */
+	public void reset () {
+		count = 0;
+		sum = 0;
+		mean = 0;
+		m2 = 0;
+		min = Long.MAX_VALUE;
+		max = Long.MIN_VALUE;
+		sorted = true;
 	}
 	
-	public void acceptNewDoubleValues (List<Double> values) {
-		this.values = values;
+	public void accept (long value) {
+		if (count == values.length) {
+			values = Arrays.copyOf(values, values.length * 2);
+		}
+		values[count++] = value;
+		sorted = false;
+		sum += value;
+		// https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Welford's_online_algorithm
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		min = Math.min(min, value);
+		max = Math.max(max, value);
 	}
 	
-	public void displayStatistics() {
-		double sum = getSumFromValues();
-		double mean = getMeanFromValues(sum);
-		double stddev = getStdDevFromValues(mean);
-		int count = values.size();
-		Date timestamp = new Date();
-		String dateStr = new SimpleDateFormat("yyyy.MM.dd 'at' HH:mm:ss").format(timestamp);
-		System.out.printf("[%s] Server Throughput: %.0f messages, Active Client Connections: %d,"
-				+ " Mean Throughput: %.2f messages, StdDev. Throughput %.2f messages\n",
-						dateStr, sum, count, mean, stddev);
+	public int getCount() {
+		return count;
 	}
-
-	private double getSumFromValues() {
-		double sum = 0;
-		for (Double i : values) {
-			sum += i;
-		}
+	
+	public double getSum() {
 		return sum;
 	}
 	
-	private double getMeanFromValues(double sum) {
-		return (sum != 0) ? sum / (double) values.size() : 0;
+	public double getMean() {
+		return mean;
 	}
-
-	// https://www.khanacademy.org/math/probability/data-distributions-a1/
-	// 		summarizing-spread-distributions/a/calculating-standard-deviation-step-by-step
-	private double getStdDevFromValues(double mean) {
-		double variance = 0;
-		for (Double i : values) {
-			// v = [sum (|x - u|**2) / N]
-			variance += (mean - i) * (mean - i);
-		}
-		if (variance == 0) {
+	
+	/**
+	 * @return the population std. dev., as the old two pass version computed it
+	 */
+	public double getStdDev() {
+		return count == 0 ? 0 : Math.sqrt(m2 / count);
+	}
+	
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+	
+	public long getMax() {
+		return count == 0 ? 0 : max;
+	}
+	
+	/**
+	 * Nearest rank percentile, sorts the interval's values in place on first use
+	 * @param percentile - between 0 and 100
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) {
 			return 0;
 		}
-		variance /= values.size();
-		return Math.sqrt(variance);
+		if (!sorted) {
+			Arrays.sort(values, 0, count);
+			sorted = true;
+		}
+		int rank = (int) Math.ceil(percentile / 100.0 * count);
+		return values[Math.max(0, Math.min(count, rank) - 1)];
+	}
+	
+	public void displayStatistics() {
+		Date timestamp = new Date();
+		String dateStr = new SimpleDateFormat("yyyy.MM.dd 'at' HH:mm:ss").format(timestamp);
+		System.out.printf("[%s] Server Throughput: %.0f messages, Active Client Connections: %d,"
+				+ " Mean Throughput: %.2f messages, StdDev. Throughput %.2f messages\n",
+						dateStr, sum, count, getMean(), getStdDev());
+		System.out.printf("Per Client Throughput: min=%d p50=%d p90=%d p99=%d max=%d messages\n",
+				getMin(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
 	}
-
 }
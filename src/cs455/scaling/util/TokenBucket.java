@@ -0,0 +1,51 @@
+package cs455.scaling.util;
+
+/**
+ * A token bucket that refills continuously at a fixed rate, up to a burst's worth of tokens.
+ * Tokens are taken after the fact, once it is known what was used, so the bucket may go into
+ * debt. The owner then waits until the debt is paid off, which keeps the long run rate exact
+ * however large a single take is.
+ *
+ * Not thread safe, a bucket belongs to the thread that takes from it.
+ * @author Brandt Reutimann
+ */
+public class TokenBucket {
+	private final double tokensPerNano;
+	private final double capacity;
+	private double tokens;
+	private long refilledAt;
+
+	/**
+	 * Starts full
+	 * @param ratePerSecond - tokens added every second
+	 * @param burstNanos - the bucket holds this long's worth of tokens, and at least one
+	 */
+	public TokenBucket (long ratePerSecond, long burstNanos) {
+		this.tokensPerNano = ratePerSecond / 1e9;
+		this.capacity = Math.max(1, tokensPerNano * burstNanos);
+		this.tokens = capacity;
+		this.refilledAt = System.nanoTime();
+	}
+
+	/**
+	 * Takes count tokens, going into debt if there are not enough
+	 * @return nanoseconds until the bucket is out of debt, 0 if it has tokens left
+	 */
+	public long take (long count, long now) {
+		refill(now);
+		tokens -= count;
+		return nanosUntilAvailable();
+	}
+
+	private void refill (long now) {
+		tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+		refilledAt = now;
+	}
+
+	private long nanosUntilAvailable () {
+		if (tokens > 0) {
+			return 0;
+		}
+		return (long) Math.ceil(-tokens / tokensPerNano) + 1;
+	}
+}